@@ -0,0 +1,50 @@
+/* batchfork.c
+ *	Test that a batch of system calls refuses fork(), exit() and halt(),
+ *	which would not return to finish the batch, and still runs the
+ *	entries around them.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+int main(int argc, char** argv)
+{
+  struct syscall_desc descs[5];
+  char before[] = "before\n", after[] = "after\n";
+  int i, n;
+
+  for (i=0; i<5; i++)
+    descs[i].result = 0;
+
+  descs[0].number = syscallWrite;
+  descs[0].args[0] = fdStandardOutput;
+  descs[0].args[1] = (int) before;
+  descs[0].args[2] = 7;
+
+  descs[1].number = syscallFork;
+
+  descs[2].number = syscallExit;
+  descs[2].args[0] = 1;
+
+  descs[3].number = syscallHalt;
+
+  descs[4].number = syscallWrite;
+  descs[4].args[0] = fdStandardOutput;
+  descs[4].args[1] = (int) after;
+  descs[4].args[2] = 6;
+
+  n = syscallv(descs, 5);
+
+  /* only one process gets here, and every entry was executed */
+  assert(n == 5);
+  assert(descs[0].result == 7);
+  assert(descs[1].result == -1);
+  assert(descs[2].result == -1);
+  assert(descs[3].result == -1);
+  assert(descs[4].result == 6);
+
+  printf("batchfork passed\n");
+
+  return 0;
+}
@@ -108,10 +108,142 @@ static int tokenizeCommand(char* command, int maxTokens, char *tokens[], char* s
     return numTokens;
 }
 
+/**
+ * spawn
+ *
+ * Runs the program named by argv[0], with ".coff" appended, passing it the
+ * specified arguments.
+ *
+ * Returns the pid of the new process, or -1 on error.
+ */
+static int spawn(int argc, char *argv[]) {
+    char prog[BUFFERSIZE];
+
+    strcpy(prog, argv[0]);
+    strcat(prog, ".coff");
+
+    return exec(prog, argc, argv);
+}
+
+/**
+ * waitFor
+ *
+ * Joins the specified process and reports how it finished.
+ */
+static void waitFor(int pid) {
+    int status;
+
+    switch (join(pid, &status)) {
+    case -1:
+	printf("join: Invalid process ID.\n");
+	break;
+    case 0:
+	printf("\n[%d] Unhandled exception\n", pid);
+	break;
+    case 1:
+	printf("\n[%d] Done (%d)\n", pid, status);
+	break;
+    }
+}
+
+/**
+ * reapJobs
+ *
+ * Reports background jobs that have finished since the last prompt, without
+ * waiting for any that are still running.
+ */
+static void reapJobs() {
+    struct childexit exits[MAXARGS];
+    int i, n;
+
+    while ((n = waitpid(-1, exits, MAXARGS, WNOHANG)) > 0) {
+	for (i=0; i<n; i++) {
+	    if (exits[i].status == -1)
+		printf("\n[%d] Unhandled exception\n", exits[i].pid);
+	    else
+		printf("\n[%d] Done (%d)\n", exits[i].pid, exits[i].status);
+	}
+    }
+}
+
+/**
+ * runPipeline
+ *
+ * Runs the commands separated by "|" tokens in argv, connecting the output
+ * of each to the input of the next with a pipe. A program inherits the
+ * shell's standard input and output when it is exec'ed, so the shell points
+ * them at the pipes around each command in turn, and restores them
+ * afterwards.
+ */
+static void runPipeline(int argc, char *argv[], int background) {
+    int pids[MAXARGS];
+    int numStages = 0, start = 0, input = -1;
+    int savedInput, savedOutput, pid, i;
+    int fds[2];
+
+    savedInput = dup(0);
+    savedOutput = dup(1);
+    if (savedInput == -1 || savedOutput == -1) {
+	printf("dup: failed.\n");
+	close(savedInput);
+	close(savedOutput);
+	return;
+    }
+
+    for (i=0; i<=argc; i++) {
+	if (i < argc && strcmp(argv[i], "|") != 0)
+	    continue;
+
+	if (i == start) {
+	    printf("Invalid null command.\n");
+	    break;
+	}
+
+	if (i < argc) {
+	    if (pipe(fds) == -1) {
+		printf("pipe: failed.\n");
+		break;
+	    }
+	    dup2(fds[1], 1);
+	    close(fds[1]);
+	}
+
+	if (input != -1) {
+	    dup2(input, 0);
+	    close(input);
+	}
+
+	pid = spawn(i - start, argv + start);
+
+	dup2(savedInput, 0);
+	dup2(savedOutput, 1);
+	input = (i < argc) ? fds[0] : -1;
+
+	if (pid == -1)
+	    printf("%s: exec failed.\n", argv[start]);
+	else
+	    pids[numStages++] = pid;
+
+	start = i+1;
+    }
+
+    if (input != -1)
+	close(input);
+    close(savedInput);
+    close(savedOutput);
+
+    for (i=0; i<numStages; i++) {
+	if (background)
+	    printf("\n[%d]\n", pids[i]);
+	else
+	    waitFor(pids[i]);
+    }
+}
+
 void runline(char* line) {
-    int pid, background, status;
+    int pid, background, i;
    
-    char args[BUFFERSIZE], prog[BUFFERSIZE];
+    char args[BUFFERSIZE];
     char *argv[MAXARGS];
 
     int argc = tokenizeCommand(line, MAXARGS, argv, args);
@@ -126,6 +258,13 @@ void runline(char* line) {
 	background = 0;
     }
 
+    for (i=0; i<argc; i++) {
+	if (strcmp(argv[i], "|") == 0) {
+	    runPipeline(argc, argv, background);
+	    return;
+	}
+    }
+
     if (argc > 0) {
 	if (strcmp(argv[0], "exit")==0) {
 	    if (argc == 1) {
@@ -159,10 +298,7 @@ void runline(char* line) {
 	    }
 	}
 	else {
-	    strcpy(prog, argv[0]);
-	    strcat(prog, ".coff");
-
-	    pid = exec(prog, argc, argv);
+	    pid = spawn(argc, argv);
 	    if (pid == -1) {
 		printf("%s: exec failed.\n", argv[0]);
 		return;
@@ -170,17 +306,7 @@ void runline(char* line) {
 	}
 
 	if (!background) {
-	    switch (join(pid, &status)) {
-	    case -1:
-		printf("join: Invalid process ID.\n");
-		break;
-	    case 0:
-		printf("\n[%d] Unhandled exception\n", pid);
-		break;
-	    case 1:
-		printf("\n[%d] Done (%d)\n", pid, status);
-		break;
-	    }
+	    waitFor(pid);
 	}
 	else {
 	    printf("\n[%d]\n", pid);
@@ -194,6 +320,8 @@ int main(int argc, char *argv[]) {
     char buffer[BUFFERSIZE];
 
     while (1) {
+	reapJobs();
+
 	printf("%s", prompt);
 
 	readline(buffer, BUFFERSIZE);
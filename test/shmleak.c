@@ -0,0 +1,38 @@
+/* shmleak.c
+ *	Test that a shared memory segment that is created but never attached
+ *	is destroyed when the process that created it exits, giving its
+ *	physical pages back.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE	1024
+#define SEGMENTSIZE	(4*PAGESIZE)
+#define ROUNDS		8
+
+int main(int argc, char** argv)
+{
+  int i, pid, status;
+
+  for (i=0; i<ROUNDS; i++) {
+    pid = fork();
+    assert(pid != -1);
+
+    if (pid == 0) {
+      /* a new key each round, so nothing is reused */
+      exit(shmget(100+i, SEGMENTSIZE) == -1);
+    }
+
+    assert(join(pid, &status) == 1);
+    assert(status == 0);
+  }
+
+  /* the segments of all the children must be gone by now */
+  assert(shmget(200, SEGMENTSIZE) != -1);
+
+  printf("shmleak passed\n");
+
+  return 0;
+}
@@ -67,3 +67,19 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(syscallv, syscallBatch)
+	SYSCALLSTUB(io_setup, syscallIoSetup)
+	SYSCALLSTUB(io_enter, syscallIoEnter)
+	SYSCALLSTUB(dup, syscallDup)
+	SYSCALLSTUB(dup2, syscallDup2)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(sbrk, syscallSbrk)
+	SYSCALLSTUB(execve, syscallExecve)
+	SYSCALLSTUB(waitpid, syscallWaitpid)
@@ -25,6 +25,22 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallBatch		15
+#define syscallIoSetup		16
+#define syscallIoEnter		17
+#define syscallDup		18
+#define syscallDup2		19
+#define syscallFork		20
+#define syscallMunmap		21
+#define syscallShmget		22
+#define syscallShmat		23
+#define syscallShmdt		24
+#define syscallPipe		25
+#define syscallSbrk		26
+#define syscallExecve		27
+#define syscallWaitpid		28
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +69,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), execve(), join(), waitpid() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -71,8 +87,9 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with file descriptors 0 and 1 referring to the same
+ * files as descriptors 0 and 1 of the current process (normally stdin and
+ * stdout).
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -83,13 +100,29 @@ void exit(int status);
  *
  * argv is an array of pointers to null-terminated strings that represent the
  * arguments to pass to the child process. argv[0] points to the first
- * argument, and argv[argc-1] points to the last argument.
+ * argument, and argv[argc-1] points to the last argument. The strings need not
+ * lie next to each other, and together with the pointers to them may take up
+ * to 32 pages. The child's environment is empty.
  *
  * exec() returns the child process's process ID, which can be passed to
  * join(). On error, returns -1.
  */
 int exec(char *file, int argc, char *argv[]);
 
+/**
+ * Like exec(), but argv and envp are each an array of pointers to
+ * null-terminated strings that ends with a null pointer; a null envp means an
+ * empty environment. The child is called as
+ *
+ *	main(int argc, char *argv[], char *envp[])
+ *
+ * with both arrays ending in a null pointer. Arguments and environment
+ * together may take up to 32 pages.
+ *
+ * execve() returns the child process's process ID, or -1 on error.
+ */
+int execve(char *file, char *argv[], char *envp[]);
+
 /**
  * Suspend execution of the current process until the child process specified
  * by the processID argument has exited. If the child has already exited by the
@@ -109,6 +142,45 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/* waitpid() option: return 0 rather than wait if no child has exited yet. */
+#define WNOHANG			1
+
+/* The exit of one child, reported by waitpid(). */
+struct childexit {
+    int pid;
+    int status;
+};
+
+/**
+ * Collect the exits of children of the current process, in the order they
+ * exited, so that a process with many children need not join them one at a
+ * time.
+ *
+ * processID is the child to wait for, or -1 to wait for any child.
+ *
+ * Up to count exits are stored in exits. Each holds the child's process ID
+ * and the value it passed to exit(), or -1 if it exited because of an
+ * unhandled exception. Each child reported is disowned, as by join().
+ *
+ * If no matching child has exited yet, waitpid() waits for one to exit, or
+ * returns 0 at once if options is WNOHANG.
+ *
+ * Returns the number of exits stored, or -1 if the current process has no
+ * matching child, count is not positive, or options is not 0 or WNOHANG.
+ */
+int waitpid(int processID, struct childexit *exits, int count, int options);
+
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * has a new unique process ID, a copy of the parent's memory and the same open
+ * files, and continues from the point of the fork() call. Memory is copied
+ * lazily: both processes share each page until one of them writes to it.
+ *
+ * fork() returns the child's process ID in the parent, which can be passed to
+ * join(), and 0 in the child. On error, returns -1 and no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -215,18 +287,216 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Make a new file descriptor that refers to the same file or stream as
+ * fileDescriptor, using the lowest-numbered descriptor that is not open. The
+ * two descriptors share the file position; the file is only closed once both
+ * have been closed.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Like dup(), but use newFileDescriptor for the copy, closing it first if it
+ * was open. If the two descriptors are equal, does nothing.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * Create a pipe: a one-way stream held in a bounded kernel buffer. Two new
+ * file descriptors are stored in fileDescriptors: fileDescriptors[0] is the
+ * read end and fileDescriptors[1] the write end.
+ *
+ * A read from an empty pipe waits until data is written, and returns 0 (end
+ * of file) once every descriptor for the write end has been closed. A write
+ * to a full pipe waits until data is read, and fails once every descriptor
+ * for the read end has been closed. Combined with dup2() and exec(), which
+ * passes descriptors 0 and 1 on to the child, a pipe connects the output of
+ * one program to the input of another.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int *fileDescriptors);
+
+/* A buffer for readv() and writev(). */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Read from fileDescriptor into iovcnt buffers, filling iov[0] first, then
+ * iov[1], and so on, as if they were one contiguous buffer. Stops early on a
+ * short read, exactly as read() would.
  *
- * Returns the length of the file on success, or -1 if an error occurred.
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Write iovcnt buffers to fileDescriptor in order, as if they were one
+ * contiguous buffer.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* One entry in a batch of system calls passed to syscallv(). */
+struct syscall_desc {
+    int number;
+    int args[4];
+    int result;
+};
+
+/**
+ * Execute count system calls in a single trap. The calls are executed in
+ * order, and the value each one returns is stored in its result field. A
+ * batch may not contain syscallBatch itself, nor fork(), exit(), halt() or
+ * execve(), none of which would return to finish the batch; such an entry's
+ * result is -1, and the entries after it are still executed. Calls that
+ * block, such as join() or waitpid(), block the whole batch.
+ *
+ * Returns the number of entries executed, or -1 if descs could not be read.
+ */
+int syscallv(struct syscall_desc *descs, int count);
+
+/* ASYNCHRONOUS I/O: io_setup(), io_enter()
+ *
+ * A process can keep several file operations in flight using a pair of rings
+ * in its own memory. The ring area starts with a struct io_rings, followed by
+ * entries submission slots and then entries completion slots. The process
+ * fills submission slots and advances sq_tail; the kernel advances sq_head as
+ * it consumes them, and posts results to completion slots, advancing cq_tail.
+ * The process advances cq_head once it has consumed a completion. Head and
+ * tail values never wrap; slot i is at index i % entries.
+ *
+ * Operations at explicit offsets may run concurrently and complete in any
+ * order. Operations at the current position (offset -1) run one at a time, in
+ * the order they were submitted.
+ */
+#define IO_NOP		0
+#define IO_READ		1
+#define IO_WRITE	2
+
+struct io_rings {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+    int entries;
+    int reserved[3];
+};
+
+struct io_submission {
+    int opcode;		/* IO_NOP, IO_READ or IO_WRITE */
+    int fd;
+    void *buffer;
+    int count;
+    int offset;		/* file offset, or -1 for the current position */
+    int user_data;	/* copied to the completion */
+};
+
+struct io_completion {
+    int user_data;
+    int result;		/* what read() or write() would have returned */
+};
+
+#define IO_RING_SIZE(entries) \
+    (sizeof(struct io_rings) + \
+     (entries) * (sizeof(struct io_submission) + sizeof(struct io_completion)))
+
+/**
+ * Set up asynchronous I/O rings with the given number of slots in the
+ * IO_RING_SIZE(entries) bytes at ring. A process may only set up one pair of
+ * rings, with at most 256 slots each.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(int entries, void *ring);
+
+/**
+ * Hand up to toSubmit queued submissions to the kernel, then wait until at
+ * least minComplete completions are ready (or nothing is left in flight).
+ * Submissions are only consumed while their completions are sure to fit.
+ *
+ * Returns the number of submissions consumed, or -1 if an error occurred.
+ */
+int io_enter(int toSubmit, int minComplete);
+
+/**
+ * Map length bytes of the file referenced by fileDescriptor, starting at
+ * offset, into memory at address. Both address and offset must be multiples
+ * of the page size, and the mapped pages must lie above the program's heap,
+ * anywhere up to the end of the 32-bit address space, and not overlap another
+ * map. The heap cannot then grow past the start of the map.
+ *
+ * Nothing is read until a page of the map is touched; each page is then read
+ * from the file, and the part of it past the end of the file reads as zeros.
+ * Pages that are written are written back to the file when memory runs short,
+ * when the map is removed by munmap(), and when the process exits, which may
+ * extend the file up to offset+length bytes. The map keeps its own reference
+ * to the file, so fileDescriptor may be closed once mmap() returns. A child
+ * created by fork() inherits the maps of its parent.
+ *
+ * Returns length on success, or -1 if an error occurred.
+ */
+int mmap(int fileDescriptor, char *address, int offset, int length);
+
+/**
+ * Remove the map that starts at address, writing its dirty pages back to the
+ * file first. Touching the pages afterwards is an error.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
+/**
+ * Return the identifier of the shared memory segment with the given key,
+ * creating a segment of size bytes, filled with zeros, if there is none. Key
+ * 0 always creates a new segment, which other processes can only reach
+ * through its identifier (for example, by inheriting it across fork()).
+ *
+ * A segment's pages stay in physical memory for as long as it exists. The
+ * process that creates a segment holds it until that process exits, whether
+ * or not it attaches it; after that, the segment exists until the last
+ * process attached to it detaches or exits.
+ *
+ * Returns the identifier on success, or -1 if the existing segment is smaller
+ * than size or there is not enough memory for a new one.
+ */
+int shmget(int key, int size);
+
+/**
+ * Attach the shared memory segment id at address, which must be a multiple
+ * of the page size above the program's heap, and not overlap a map or
+ * another attached segment. Every process that attaches the segment
+ * sees the same memory; writes by one are seen by the others immediately. A
+ * child created by fork() inherits its parent's attached segments.
+ *
+ * Returns address on success, or -1 if an error occurred.
+ */
+char *shmat(int id, char *address);
+
+/**
+ * Detach the shared memory segment attached at address.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(char *address);
+
+/**
+ * Move the end of the heap, which starts out empty just above the program's
+ * arguments and environment, by increment bytes; a negative increment
+ * shrinks it. Memory the heap grows into reads as zeros, and memory it
+ * shrinks out of may no longer be touched.
+ *
+ * Returns the previous end of the heap, so sbrk(0) returns the current one,
+ * or (void *) -1 if the heap would shrink below its start, grow into a map or
+ * segment, or memory for it cannot be found.
  */
-int mmap(int fileDescriptor, char *address);
+void *sbrk(int increment);
 
 /**
  * Attempt to initiate a new connection to the specified port on the specified
@@ -0,0 +1,220 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+
+/**
+ * The arguments and environment strings to pass to a new program. Strings
+ * may be given by the kernel, or found in the memory of the process calling
+ * <tt>exec()</tt>. Strings in process memory are only measured where they
+ * lie, and are copied from there straight into the memory of the new process,
+ * so a large argument list does not have to be gathered into the kernel.
+ *
+ * <p>
+ * In the new process, <tt>write()</tt> lays out the <tt>argv</tt> array,
+ * then the <tt>envp</tt> array, each ending with a null pointer, then the
+ * strings themselves.
+ */
+public class ArgumentList {
+    /**
+     * Allocate a new, empty argument list.
+     *
+     * @param	maxSize	the most bytes the list may take up in the new
+     *			process, pointers included.
+     */
+    public ArgumentList(int maxSize) {
+	this.maxSize = maxSize;
+    }
+
+    /**
+     * Add a string held by the kernel.
+     *
+     * @param	string	the string.
+     * @param	environment	<tt>true</tt> to add it to the environment,
+     *				<tt>false</tt> to add it to the arguments.
+     * @return	<tt>true</tt> if the list had room for it.
+     */
+    public boolean add(String string, boolean environment) {
+	byte[] data = string.getBytes();
+	if (!reserve(data.length))
+	    return false;
+
+	(environment ? environmentStrings : argumentStrings)
+	    .add(new Entry(data, 0, data.length));
+	return true;
+    }
+
+    /**
+     * Add the strings pointed to by an array in a process's memory. Only the
+     * pointers are read; each string is measured in place.
+     *
+     * @param	source	the process whose memory holds the array. All
+     *			strings in process memory must come from the same
+     *			process.
+     * @param	vaddr	the address of the array.
+     * @param	count	the number of pointers in the array, or -1 if the
+     *			array ends with a null pointer.
+     * @param	environment	<tt>true</tt> to add the strings to the
+     *				environment, <tt>false</tt> to add them to the
+     *				arguments.
+     * @return	<tt>true</tt> if every string was found and the list had room
+     *		for them.
+     */
+    public boolean add(UserProcess source, int vaddr, int count,
+		       boolean environment) {
+	Lib.assertTrue(this.source == null || this.source == source);
+	this.source = source;
+
+	byte[] pointer = new byte[4];
+	for (int i=0; count < 0 || i < count; i++) {
+	    if (source.readVirtualMemory(vaddr + 4*i, pointer) != 4)
+		return false;
+
+	    int address = Lib.bytesToInt(pointer, 0);
+	    // only an array without a count may end with a null pointer
+	    if (address == 0)
+		return count < 0;
+
+	    // a string longer than the room left cannot be added anyway
+	    int room = maxSize - size - 5;
+	    int length = (room < 0) ? -1 : source.stringLength(address, room);
+	    if (length < 0 || !reserve(length))
+		return false;
+
+	    (environment ? environmentStrings : argumentStrings)
+		.add(new Entry(null, address, length));
+	}
+
+	return true;
+    }
+
+    /**
+     * Return the number of arguments.
+     *
+     * @return	<tt>argc</tt>.
+     */
+    public int getNumArguments() {
+	return argumentStrings.size();
+    }
+
+    /**
+     * Return the number of bytes this list takes up in the new process.
+     *
+     * @return	the size of the pointer arrays and the strings.
+     */
+    public int getSize() {
+	return size;
+    }
+
+    /**
+     * Lay out this list in a process's memory.
+     *
+     * @param	target	the new process.
+     * @param	vaddr	where to put the <tt>argv</tt> array.
+     * @return	the address of the <tt>envp</tt> array, or -1 if the memory
+     *		could not be written.
+     */
+    public int write(UserProcess target, int vaddr) {
+	int argc = argumentStrings.size();
+	int envc = environmentStrings.size();
+
+	int envp = vaddr + 4*(argc+1);
+	int stringAddress = envp + 4*(envc+1);
+
+	// both arrays, with the null pointer that ends each
+	byte[] pointers = new byte[4*(argc+1 + envc+1)];
+
+	for (int i=0; i<argc+envc; i++) {
+	    Entry entry = (i < argc) ? argumentStrings.get(i)
+		: environmentStrings.get(i-argc);
+	    int slot = (i < argc) ? i : i+1;
+
+	    Lib.bytesFromInt(pointers, 4*slot, stringAddress);
+
+	    if (!copyString(entry, target, stringAddress))
+		return -1;
+	    stringAddress += entry.length + 1;
+	}
+
+	if (target.writeVirtualMemory(vaddr, pointers) != pointers.length)
+	    return -1;
+
+	return envp;
+    }
+
+    /**
+     * Copy a string and its null terminator into the new process, straight
+     * from the memory of the source process if it is there.
+     */
+    private boolean copyString(Entry entry, UserProcess target, int vaddr) {
+	if (entry.data != null) {
+	    if (target.writeVirtualMemory(vaddr, entry.data) != entry.length)
+		return false;
+	}
+	else {
+	    if (run == null)
+		run = new PageRunIterator(source);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    int copied = 0;
+
+	    run.reset(entry.address, entry.length, false);
+	    while (run.next()) {
+		if (target.writeVirtualMemory(vaddr + copied, memory,
+					      run.getPhysicalAddress(),
+					      run.getLength()) != run.getLength()) {
+		    run.release();
+		    return false;
+		}
+		copied += run.getLength();
+	    }
+
+	    if (copied != entry.length)
+		return false;
+	}
+
+	return target.writeVirtualMemory(vaddr + entry.length, terminator) == 1;
+    }
+
+    /**
+     * Make room for a pointer and a string of some length.
+     */
+    private boolean reserve(int length) {
+	if (length > maxSize - size - 5)
+	    return false;
+
+	size += 4 + length + 1;
+	return true;
+    }
+
+    /**
+     * A string, either held by the kernel in <tt>data</tt>, or at
+     * <tt>address</tt> in the memory of the source process.
+     */
+    private static class Entry {
+	Entry(byte[] data, int address, int length) {
+	    this.data = data;
+	    this.address = address;
+	    this.length = length;
+	}
+
+	byte[] data;
+	int address;
+	int length;
+    }
+
+    private int maxSize;
+    /** The two null pointers that end the arrays are always needed. */
+    private int size = 8;
+
+    private UserProcess source = null;
+    private PageRunIterator run = null;
+
+    private ArrayList<Entry> argumentStrings = new ArrayList<Entry>();
+    private ArrayList<Entry> environmentStrings = new ArrayList<Entry>();
+
+    private static final byte[] terminator = new byte[] { 0 };
+}
@@ -0,0 +1,337 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * A pair of submission and completion rings shared between a user process and
+ * the kernel, in the spirit of Linux's <tt>io_uring</tt>. The rings live in
+ * the process's own address space; the process queues file operations in the
+ * submission ring and calls <tt>io_enter()</tt>, and a small pool of kernel
+ * worker threads carries them out and posts results to the completion ring.
+ * A single user thread can therefore keep several file operations in flight
+ * and overlap computation with the simulated I/O delay.
+ *
+ * <p>
+ * The ring area has the following layout, all fields being 32-bit words:
+ *
+ * <table>
+ * <tr><td>offset</td><td>field</td></tr>
+ * <tr><td>0</td><td>sqHead: next submission the kernel will consume</td></tr>
+ * <tr><td>4</td><td>sqTail: next free submission slot (written by the user)</td></tr>
+ * <tr><td>8</td><td>cqHead: next completion the user will consume (written by
+ *			the user)</td></tr>
+ * <tr><td>12</td><td>cqTail: next free completion slot</td></tr>
+ * <tr><td>16</td><td>entries: the number of slots in each ring</td></tr>
+ * <tr><td>32</td><td>the submission ring: <i>entries</i> slots of
+ *			<tt>opcode, fd, addr, length, offset, userData</tt></td></tr>
+ * <tr><td>32 + 24*<i>entries</i></td><td>the completion ring: <i>entries</i>
+ *			slots of <tt>userData, result</tt></td></tr>
+ * </table>
+ *
+ * <p>
+ * Head and tail values increase without wrapping; slot <i>i</i> lives at index
+ * <tt>i % entries</tt>. An <tt>offset</tt> of -1 reads or writes at the file's
+ * current position; any other value is an explicit file offset.
+ *
+ * <p>
+ * Requests at explicit offsets are shared out among the workers and may
+ * complete in any order. Requests at the current position all go to one
+ * worker, which carries them out one at a time in submission order, so that
+ * they neither race on a file's position nor interleave their data.
+ */
+public class AsyncIORing {
+    /**
+     * Allocate a new ring in the specified process's address space and start
+     * its worker threads.
+     *
+     * @param	process	the process that owns the ring.
+     * @param	vaddr	the virtual address of the ring area.
+     * @param	entries	the number of slots in each ring.
+     */
+    public AsyncIORing(UserProcess process, int vaddr, int entries) {
+	Lib.assertTrue(entries > 0 && entries <= maxEntries);
+
+	this.process = process;
+	this.vaddr = vaddr;
+	this.entries = entries;
+
+	ringRun = new PageRunIterator(process);
+	word = new byte[submissionSize];
+
+	lock = new Lock();
+	completed = new Condition2(lock);
+	idle = new Condition2(lock);
+
+	for (int i=0; i<entries; i++)
+	    freeRequests.add(new Request());
+
+	// worker 0 serves the current-position requests
+	workers = new KThread[workerCount];
+	for (int i=0; i<workerCount; i++) {
+	    workers[i] = new KThread(new Worker(i == 0 ? sequential : pending));
+	    workers[i].setName("aio worker " + i);
+	    workers[i].fork();
+	}
+    }
+
+    /**
+     * Return the number of bytes of user memory needed by a ring with the
+     * specified number of slots.
+     *
+     * @param	entries	the number of slots in each ring.
+     * @return	the size of the ring area in bytes.
+     */
+    public static int ringSize(int entries) {
+	return headerSize + entries*(submissionSize + completionSize);
+    }
+
+    /**
+     * Initialize the shared header of the ring area.
+     *
+     * @return	<tt>true</tt> if the whole ring area is mapped and writable.
+     */
+    public boolean initialize() {
+	byte[] zero = new byte[ringSize(entries)];
+	lock.acquire();
+	boolean mapped = process.writeVirtualMemory(ringRun, vaddr, zero, 0,
+						    zero.length) == zero.length;
+	if (mapped)
+	    writeWord(offsetEntries, entries);
+	lock.release();
+	return mapped;
+    }
+
+    /**
+     * Consume up to <i>count</i> submissions and hand them to the workers.
+     * Submissions are only accepted while there is guaranteed room in the
+     * completion ring for their results.
+     *
+     * @param	count	the maximum number of submissions to consume.
+     * @return	the number of submissions consumed, or -1 if the ring area
+     *		could not be accessed.
+     */
+    public int submit(int count) {
+	lock.acquire();
+
+	int sqTail = readWord(offsetSqTail);
+	int unconsumed = getNumUnconsumed();
+	int submitted = 0;
+
+	while (submitted < count && sqHead != sqTail && inFlight < entries &&
+	       inFlight + unconsumed < entries) {
+	    int slot = vaddr + headerSize + (sqHead % entries)*submissionSize;
+	    if (process.readVirtualMemory(ringRun, slot, word, 0,
+					  submissionSize) < submissionSize) {
+		lock.release();
+		return -1;
+	    }
+
+	    Request request = freeRequests.removeFirst();
+	    request.opcode = Lib.bytesToInt(word, 0);
+	    request.file = process.getOpenFile(Lib.bytesToInt(word, 4));
+	    // hold the file open until the request completes
+	    if (request.file != null)
+		request.file.reference();
+	    request.addr = Lib.bytesToInt(word, 8);
+	    request.length = Lib.bytesToInt(word, 12);
+	    request.offset = Lib.bytesToInt(word, 16);
+	    request.userData = Lib.bytesToInt(word, 20);
+
+	    sqHead++;
+	    inFlight++;
+	    submitted++;
+
+	    if (request.offset == -1)
+		sequential.add(request);
+	    else
+		pending.add(request);
+	}
+
+	writeWord(offsetSqHead, sqHead);
+	lock.release();
+
+	return submitted;
+    }
+
+    /**
+     * Wait until at least <i>count</i> completions are waiting to be consumed
+     * by the user, or until nothing more is in flight.
+     *
+     * @param	count	the number of completions to wait for.
+     */
+    public void waitForCompletions(int count) {
+	lock.acquire();
+	while (inFlight > 0 && getNumUnconsumed() < count)
+	    completed.sleep();
+	lock.release();
+    }
+
+    /**
+     * Wait for every in-flight operation to finish. The caller must ensure
+     * no new operations are submitted meanwhile.
+     */
+    public void drain() {
+	lock.acquire();
+	while (inFlight > 0)
+	    idle.sleep();
+	lock.release();
+    }
+
+    /**
+     * Wait for every in-flight operation to finish, then stop the workers.
+     * Called when the owning process exits, before its memory is released.
+     */
+    public void close() {
+	drain();
+
+	sequential.add(shutdown);
+	for (int i=1; i<workerCount; i++)
+	    pending.add(shutdown);
+	for (int i=0; i<workerCount; i++)
+	    workers[i].join();
+    }
+
+    private void complete(Request request, int result) {
+	lock.acquire();
+
+	int slot = vaddr + headerSize + entries*submissionSize +
+	    (cqTail % entries)*completionSize;
+	Lib.bytesFromInt(word, 0, request.userData);
+	Lib.bytesFromInt(word, 4, result);
+	process.writeVirtualMemory(ringRun, slot, word, 0, completionSize);
+
+	cqTail++;
+	writeWord(offsetCqTail, cqTail);
+
+	if (request.file != null) {
+	    request.file.close();
+	    request.file = null;
+	}
+	freeRequests.add(request);
+
+	inFlight--;
+	completed.wakeAll();
+	if (inFlight == 0)
+	    idle.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of completions the user has not consumed yet. The
+     * user may have written anything to the completion head, so the count is
+     * clamped to the size of the ring.
+     */
+    private int getNumUnconsumed() {
+	int unconsumed = cqTail - readWord(offsetCqHead);
+	return Math.max(0, Math.min(unconsumed, entries));
+    }
+
+    private int readWord(int offset) {
+	if (process.readVirtualMemory(ringRun, vaddr+offset, word, 0, 4) < 4)
+	    return 0;
+	return Lib.bytesToInt(word, 0);
+    }
+
+    private void writeWord(int offset, int value) {
+	Lib.bytesFromInt(word, 0, value);
+	process.writeVirtualMemory(ringRun, vaddr+offset, word, 0, 4);
+    }
+
+    private class Worker implements Runnable {
+	Worker(SynchList queue) {
+	    this.queue = queue;
+	}
+
+	public void run() {
+	    while (true) {
+		Request request = (Request) queue.removeFirst();
+		if (request == shutdown)
+		    break;
+
+		complete(request, perform(request));
+	    }
+	}
+
+	private int perform(Request request) {
+	    if (request.opcode == opNop)
+		return 0;
+
+	    if (request.file == null || request.length < 0)
+		return -1;
+
+	    switch (request.opcode) {
+	    case opRead:
+		return process.readFileToVirtualMemory(request.file,
+						       request.offset,
+						       request.addr,
+						       request.length,
+						       run, buffer);
+	    case opWrite:
+		return process.writeVirtualMemoryToFile(request.file,
+							request.offset,
+							request.addr,
+							request.length,
+							run, buffer);
+	    default:
+		return -1;
+	    }
+	}
+
+	private SynchList queue;
+	private PageRunIterator run = new PageRunIterator(process);
+	private byte[] buffer = new byte[UserProcess.transferBufferSize];
+    }
+
+    private static class Request {
+	int opcode;
+	SharedOpenFile file;
+	int addr, length, offset, userData;
+    }
+
+    private UserProcess process;
+    private int vaddr, entries;
+
+    /** Kernel copies of the indices the kernel owns. */
+    private int sqHead = 0, cqTail = 0;
+    private int inFlight = 0;
+
+    private Lock lock;
+    private Condition2 completed, idle;
+    private PageRunIterator ringRun;
+    private byte[] word;
+
+    /** Requests at explicit offsets, for any worker but the first. */
+    private SynchList pending = new SynchList();
+    /** Requests at the current position, for the first worker only. */
+    private SynchList sequential = new SynchList();
+    private LinkedList<Request> freeRequests = new LinkedList<Request>();
+    private KThread[] workers;
+
+    private static final Request shutdown = new Request();
+
+    /** The number of worker threads servicing each ring. */
+    private static final int workerCount = 4;
+    /** The largest number of slots a ring may have. */
+    public static final int maxEntries = 256;
+
+    private static final int
+	offsetSqHead = 0,
+	offsetSqTail = 4,
+	offsetCqHead = 8,
+	offsetCqTail = 12,
+	offsetEntries = 16;
+
+    private static final int headerSize = 32;
+    private static final int submissionSize = 24;
+    private static final int completionSize = 8;
+
+    private static final int
+	opNop = 0,
+	opRead = 1,
+	opWrite = 2;
+}
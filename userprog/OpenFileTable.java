@@ -0,0 +1,165 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * The kernel-wide table of open disk files, shared by every user process.
+ * The table counts how many open files refer to each file name, which lets
+ * <tt>unlink()</tt> follow UNIX semantics: a file that is still open is only
+ * marked for deletion, and is removed from the file system when the last
+ * reference to it is closed. Until then, it cannot be opened again.
+ *
+ * <p>
+ * The table also gives each file name a modification stamp, which changes
+ * whenever the kernel creates, writes or unlinks the file. The stamp stands
+ * in for a modification time, which the file system does not provide.
+ */
+public class OpenFileTable {
+    /**
+     * Allocate a new open file table over the specified file system.
+     *
+     * @param	fileSystem	the file system that holds the files.
+     */
+    public OpenFileTable(FileSystem fileSystem) {
+	this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Open a file through this table. Fails if the file has been unlinked but
+     * is still open elsewhere.
+     *
+     * @param	name	the name of the file to open.
+     * @param	create	<tt>true</tt> to create the file if it does not exist.
+     * @return	a new reference to the open file, or <tt>null</tt> if the file
+     *		could not be opened.
+     */
+    public SharedOpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	Entry entry = entries.get(name);
+	if (entry != null && entry.unlinked) {
+	    lock.release();
+	    return null;
+	}
+
+	OpenFile file = fileSystem.open(name, create);
+	if (file == null) {
+	    lock.release();
+	    return null;
+	}
+
+	// creating a file truncates it
+	if (create)
+	    modified(name);
+
+	if (entry == null) {
+	    entry = new Entry();
+	    entries.put(name, entry);
+	}
+	entry.openCount++;
+
+	lock.release();
+
+	return new SharedOpenFile(file, this);
+    }
+
+    /**
+     * Remove a file. If the file is open, it is only marked for deletion, and
+     * will be removed when its last reference is closed.
+     *
+     * @param	name	the name of the file to remove.
+     * @return	<tt>true</tt> if the file was removed or marked for deletion.
+     */
+    public boolean unlink(String name) {
+	lock.acquire();
+
+	boolean successful;
+	Entry entry = entries.get(name);
+	if (entry == null) {
+	    successful = fileSystem.remove(name);
+	}
+	else if (entry.unlinked) {
+	    successful = false;
+	}
+	else {
+	    entry.unlinked = true;
+	    successful = true;
+	}
+
+	if (successful)
+	    modified(name);
+
+	lock.release();
+
+	return successful;
+    }
+
+    /**
+     * Test whether a file is currently open through this table.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if at least one reference to the file is open.
+     */
+    public boolean isOpen(String name) {
+	return entries.containsKey(name);
+    }
+
+    /**
+     * Return the modification stamp of a file. The stamp changes every time
+     * the file is created, written or unlinked through the kernel.
+     *
+     * @param	name	the name of the file.
+     * @return	the file's current modification stamp.
+     */
+    public int getModificationStamp(String name) {
+	Integer stamp = stamps.get(name);
+	return (stamp == null) ? 0 : stamp;
+    }
+
+    /**
+     * Record that a file has been modified, giving it a new modification
+     * stamp. Does not block, so it is safe to call with or without the table
+     * lock held.
+     *
+     * @param	name	the name of the modified file.
+     */
+    void modified(String name) {
+	stamps.put(name, ++clock);
+    }
+
+    /**
+     * Called by <tt>SharedOpenFile</tt> when the last reference to a file
+     * opened through this table has been closed.
+     *
+     * @param	name	the name of the closed file.
+     */
+    void release(String name) {
+	lock.acquire();
+
+	Entry entry = entries.get(name);
+	Lib.assertTrue(entry != null && entry.openCount > 0);
+
+	if (--entry.openCount == 0) {
+	    entries.remove(name);
+	    if (entry.unlinked)
+		fileSystem.remove(name);
+	}
+
+	lock.release();
+    }
+
+    private static class Entry {
+	int openCount = 0;
+	boolean unlinked = false;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private HashMap<String, Integer> stamps = new HashMap<String, Integer>();
+    private int clock = 0;
+    private Lock lock = new Lock();
+}
@@ -0,0 +1,208 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Walks a range of a user process's virtual memory as a sequence of runs of
+ * physically contiguous main memory. Each run is translated through
+ * <tt>UserProcess.pinPage()</tt>, so kernel code can copy directly
+ * between main memory and an <tt>OpenFile</tt> (or any other buffer) without
+ * an intermediate array and without recomputing page boundaries itself.
+ *
+ * <p>
+ * Adjacent virtual pages that happen to be backed by adjacent physical pages
+ * are merged into a single run. An iterator is reset and reused for every
+ * transfer, so walking memory does not allocate.
+ *
+ * <p>
+ * The pages of the current run (and of the next one, if it has already been
+ * translated) stay pinned in memory until the iterator moves past them, is
+ * reset, or is released, so that a run remains valid even if the caller
+ * blocks while using it. Callers that stop before exhausting the range should
+ * call <tt>release()</tt>.
+ *
+ * <p>
+ * Typical use:
+ *
+ * <pre>
+ * run.reset(vaddr, length, false);
+ * while (run.next())
+ *     file.write(memory, run.getPhysicalAddress(), run.getLength());
+ * </pre>
+ */
+public class PageRunIterator {
+    /**
+     * Allocate a new iterator over the virtual memory of the specified
+     * process.
+     *
+     * @param	process	the process whose address space will be walked.
+     */
+    public PageRunIterator(UserProcess process) {
+	this.process = process;
+    }
+
+    /**
+     * Start walking a new range of virtual memory.
+     *
+     * @param	vaddr	the first virtual address in the range.
+     * @param	length	the number of bytes in the range.
+     * @param	writing	<tt>true</tt> if the kernel will write to the range.
+     */
+    public void reset(int vaddr, int length, boolean writing) {
+	Lib.assertTrue(length >= 0);
+
+	release();
+
+	this.writing = writing;
+	this.faulted = false;
+	this.nextVaddr = vaddr;
+	this.remaining = length;
+	this.runVaddr = vaddr;
+	this.runPaddr = 0;
+	this.runLength = 0;
+
+	// addresses are unsigned; wrapping past the end of the address space
+	// is never valid
+	if ((vaddr & 0xFFFFFFFFL) + length > (long) Processor.maxPages*pageSize) {
+	    faulted = length > 0;
+	    remaining = 0;
+	}
+    }
+
+    /**
+     * Advance to the next run. Returns <tt>false</tt> when the range has been
+     * exhausted, or when the next page could not be translated (in which case
+     * <tt>faulted()</tt> returns <tt>true</tt>).
+     *
+     * @return	<tt>true</tt> if a new run is available.
+     */
+    public boolean next() {
+	unpinRun();
+
+	if (remaining == 0) {
+	    release();
+	    return false;
+	}
+
+	int vpn = Processor.pageFromAddress(nextVaddr);
+	int offset = Processor.offsetFromAddress(nextVaddr);
+
+	int ppn = translate(vpn);
+	if (ppn == -1) {
+	    faulted = true;
+	    remaining = 0;
+	    release();
+	    return false;
+	}
+
+	runFirstPpn = ppn;
+	runPages = 1;
+
+	runVaddr = nextVaddr;
+	runPaddr = ppn*pageSize + offset;
+	runLength = Math.min(pageSize - offset, remaining);
+
+	// extend the run while the following pages are physically adjacent
+	while (runLength < remaining) {
+	    int nextPpn = translate(++vpn);
+	    if (nextPpn != ppn+1) {
+		// remember the translation so the next run does not repeat it,
+		// unless it failed: the pages pinned by this run may be all
+		// that kept it from succeeding, so the next run tries again
+		if (nextPpn != -1) {
+		    pendingVpn = vpn;
+		    pendingPpn = nextPpn;
+		}
+		break;
+	    }
+
+	    ppn = nextPpn;
+	    runPages++;
+	    runLength += Math.min(pageSize, remaining - runLength);
+	}
+
+	nextVaddr += runLength;
+	remaining -= runLength;
+
+	return true;
+    }
+
+    /**
+     * Unpin every page this iterator holds. The current run is no longer
+     * valid afterwards.
+     */
+    public void release() {
+	unpinRun();
+
+	if (pendingVpn != -1) {
+	    if (pendingPpn != -1)
+		process.unpinPage(pendingPpn);
+	    pendingVpn = -1;
+	}
+    }
+
+    private void unpinRun() {
+	for (int i=0; i<runPages; i++)
+	    process.unpinPage(runFirstPpn + i);
+	runPages = 0;
+    }
+
+    private int translate(int vpn) {
+	if (vpn == pendingVpn) {
+	    pendingVpn = -1;
+	    return pendingPpn;
+	}
+
+	return process.pinPage(vpn, writing);
+    }
+
+    /**
+     * Return the virtual address of the first byte of the current run.
+     *
+     * @return	the virtual address of the current run.
+     */
+    public int getVirtualAddress() {
+	return runVaddr;
+    }
+
+    /**
+     * Return the address in main memory of the first byte of the current run.
+     *
+     * @return	the physical address of the current run.
+     */
+    public int getPhysicalAddress() {
+	return runPaddr;
+    }
+
+    /**
+     * Return the number of bytes in the current run.
+     *
+     * @return	the length of the current run.
+     */
+    public int getLength() {
+	return runLength;
+    }
+
+    /**
+     * Test whether the walk stopped early because part of the range was not
+     * mapped (or was read-only and the walk was for writing).
+     *
+     * @return	<tt>true</tt> if a page could not be translated.
+     */
+    public boolean faulted() {
+	return faulted;
+    }
+
+    private UserProcess process;
+
+    private boolean writing, faulted;
+    private int nextVaddr, remaining;
+    private int runVaddr, runPaddr, runLength;
+    private int pendingVpn = -1, pendingPpn;
+    /** The pinned physical pages of the current run. */
+    private int runFirstPpn, runPages = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,152 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A sparse table indexed by virtual page number, covering the whole 32-bit
+ * address space of <tt>Processor.maxPages</tt> pages.
+ *
+ * <p>
+ * The table has two levels. The upper bits of a virtual page number select
+ * an entry in a directory, which points to a second-level table holding the
+ * entries of 1024 consecutive pages. A second-level table is only allocated
+ * when the first of its pages is given an entry, and is freed when its last
+ * entry is removed, so an address space costs memory in proportion to the
+ * pages it uses, not to its extent.
+ *
+ * <p>
+ * A page table does no locking of its own.
+ */
+public class PageTable<E> {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public PageTable() {
+    }
+
+    /**
+     * Return the entry of a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry, or <tt>null</tt> if the page has none.
+     */
+    public E get(int vpn) {
+	if (vpn < 0 || vpn >= Processor.maxPages)
+	    return null;
+
+	Table table = directory[vpn >>> tableBits];
+	return (table == null) ? null : entry(table, vpn);
+    }
+
+    /**
+     * Set the entry of a virtual page, replacing any entry it had.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	entry	the entry, which may not be <tt>null</tt>.
+     */
+    public void put(int vpn, E entry) {
+	Lib.assertTrue(vpn >= 0 && vpn < Processor.maxPages && entry != null);
+
+	Table table = directory[vpn >>> tableBits];
+	if (table == null)
+	    table = directory[vpn >>> tableBits] = new Table();
+
+	if (table.entries[vpn & tableMask] == null) {
+	    table.numEntries++;
+	    numEntries++;
+	}
+
+	table.entries[vpn & tableMask] = entry;
+    }
+
+    /**
+     * Remove the entry of a virtual page, freeing its second-level table if
+     * no other entry is left in it.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the entry that was removed, or <tt>null</tt> if the page had
+     *		none.
+     */
+    public E remove(int vpn) {
+	E entry = get(vpn);
+	if (entry == null)
+	    return null;
+
+	Table table = directory[vpn >>> tableBits];
+	table.entries[vpn & tableMask] = null;
+	numEntries--;
+	if (--table.numEntries == 0)
+	    directory[vpn >>> tableBits] = null;
+
+	return entry;
+    }
+
+    /**
+     * Find the first page at or after a virtual page that has an entry.
+     * Second-level tables that were never allocated are skipped whole, so
+     * walking every entry is cheap even in a sparse address space:
+     *
+     * <pre>
+     * for (int vpn=table.next(0); vpn != -1; vpn=table.next(vpn+1))
+     *     ...
+     * </pre>
+     *
+     * Removing the entry of the current page while walking is allowed.
+     *
+     * @param	vpn	the virtual page number to start from.
+     * @return	the virtual page number found, or -1 if there is none.
+     */
+    public int next(int vpn) {
+	if (vpn < 0)
+	    vpn = 0;
+
+	while (vpn < Processor.maxPages) {
+	    Table table = directory[vpn >>> tableBits];
+	    if (table == null) {
+		// skip to the start of the next second-level table
+		vpn = ((vpn >>> tableBits) + 1) << tableBits;
+		continue;
+	    }
+
+	    if (table.entries[vpn & tableMask] != null)
+		return vpn;
+	    vpn++;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the number of pages that have an entry.
+     *
+     * @return	the number of entries.
+     */
+    public int getNumEntries() {
+	return numEntries;
+    }
+
+    /**
+     * Return the entry of a page from its second-level table. Only
+     * <tt>put()</tt> stores entries, and only of type <tt>E</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    private E entry(Table table, int vpn) {
+	return (E) table.entries[vpn & tableMask];
+    }
+
+    /** The entries of 1024 consecutive pages. */
+    private static class Table {
+	Object[] entries = new Object[tableSize];
+	int numEntries = 0;
+    }
+
+    /** The number of low bits of a page number that index a table. */
+    private static final int tableBits = 10;
+    private static final int tableSize = 1 << tableBits;
+    private static final int tableMask = tableSize - 1;
+
+    private Table[] directory = new Table[Processor.maxPages >>> tableBits];
+    private int numEntries = 0;
+}
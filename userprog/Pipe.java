@@ -0,0 +1,154 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A one-way byte stream between processes, created by the <tt>pipe()</tt>
+ * system call. Data written to the write end is held in a bounded ring buffer
+ * in kernel memory until it is read from the read end, so no file system I/O
+ * is involved.
+ *
+ * <p>
+ * A reader waits while the buffer is empty, and gets end-of-file once it is
+ * empty and every write end has been closed. A writer waits while the buffer
+ * is full, and gets an error once every read end has been closed. Each end
+ * is an <tt>OpenFile</tt>, shared through <tt>SharedOpenFile</tt> like any
+ * other, and is closed when its last reference is.
+ */
+public class Pipe {
+    /**
+     * Allocate a new pipe.
+     *
+     * @param	capacity	the number of bytes the pipe can hold.
+     */
+    public Pipe(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new byte[capacity];
+	readEnd = new End(true);
+	writeEnd = new End(false);
+    }
+
+    /**
+     * Return the end of this pipe that is read from.
+     *
+     * @return	the read end.
+     */
+    public OpenFile getReadEnd() {
+	return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that is written to.
+     *
+     * @return	the write end.
+     */
+    public OpenFile getWriteEnd() {
+	return writeEnd;
+    }
+
+    private int read(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	while (count == 0 && writerOpen)
+	    readable.sleep();
+
+	int amount = Math.min(length, count);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset+first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	count -= amount;
+
+	if (amount > 0)
+	    writable.wakeAll();
+
+	lock.release();
+
+	return amount;
+    }
+
+    private int write(byte[] buf, int offset, int length) {
+	lock.acquire();
+
+	int written = 0;
+	while (written < length) {
+	    while (count == buffer.length && readerOpen)
+		writable.sleep();
+
+	    if (!readerOpen)
+		break;
+
+	    int tail = (head + count) % buffer.length;
+	    int amount = Math.min(length - written, buffer.length - count);
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(buf, offset+written, buffer, tail, first);
+	    System.arraycopy(buf, offset+written+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    written += amount;
+
+	    readable.wakeAll();
+	}
+
+	lock.release();
+
+	return (written == 0 && length > 0) ? -1 : written;
+    }
+
+    private void close(boolean reading) {
+	lock.acquire();
+
+	if (reading)
+	    readerOpen = false;
+	else
+	    writerOpen = false;
+
+	// wake anyone waiting for the other end
+	readable.wakeAll();
+	writable.wakeAll();
+
+	lock.release();
+    }
+
+    /**
+     * One end of a pipe. Pipes cannot seek, so positional reads and writes
+     * fail.
+     */
+    private class End extends OpenFile {
+	End(boolean reading) {
+	    super(null, reading ? "pipe (read end)" : "pipe (write end)");
+	    this.reading = reading;
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    return reading ? Pipe.this.read(buf, offset, length) : -1;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    return reading ? -1 : Pipe.this.write(buf, offset, length);
+	}
+
+	public void close() {
+	    Pipe.this.close(reading);
+	}
+
+	private boolean reading;
+    }
+
+    private End readEnd, writeEnd;
+    private boolean readerOpen = true, writerOpen = true;
+
+    private byte[] buffer;
+    /** The index of the first unread byte in the buffer. */
+    private int head = 0;
+    /** The number of unread bytes in the buffer. */
+    private int count = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 readable = new Condition2(lock);
+    private Condition2 writable = new Condition2(lock);
+}
@@ -0,0 +1,200 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+
+/**
+ * A parsed COFF executable that can be shared by every process running the
+ * same program. The headers are parsed once, when the image is created, and
+ * each section page is read from the file the first time any process loads
+ * it; after that, loading the page is a copy from the kernel's cached copy
+ * into main memory.
+ *
+ * <p>
+ * Images are handed out by <tt>ProcessImageCache</tt>, which counts the
+ * processes using each one. The executable stays open until the last user
+ * of the image has released it.
+ *
+ * <p>
+ * Pages of read-only sections are also shared in main memory: the first
+ * process to map such a page loads it into a physical page, and every other
+ * process running the image maps the same physical page, adding a reference
+ * to it in the kernel. The page is freed when the last process unmaps it.
+ */
+public class ProcessImage {
+    /**
+     * Allocate a new image for a parsed executable.
+     *
+     * @param	name	the name of the executable file.
+     * @param	stamp	the modification stamp of the file when it was parsed.
+     * @param	coff	the parsed executable.
+     */
+    public ProcessImage(String name, int stamp, Coff coff) {
+	this.name = name;
+	this.stamp = stamp;
+	this.coff = coff;
+
+	pages = new byte[coff.getNumSections()][][];
+	sharedFrames = new int[coff.getNumSections()][];
+	for (int s=0; s<pages.length; s++) {
+	    CoffSection section = coff.getSection(s);
+	    pages[s] = new byte[section.getLength()][];
+	    if (section.isReadOnly()) {
+		sharedFrames[s] = new int[section.getLength()];
+		Arrays.fill(sharedFrames[s], -1);
+	    }
+	}
+    }
+
+    /**
+     * Return the name of the executable this image was loaded from.
+     *
+     * @return	the name of the executable file.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the modification stamp the executable had when it was parsed.
+     *
+     * @return	the modification stamp.
+     */
+    public int getStamp() {
+	return stamp;
+    }
+
+    /**
+     * Return the parsed executable. Its headers may be read freely; its
+     * sections' pages should be loaded through <tt>loadPage()</tt>.
+     *
+     * @return	the parsed executable.
+     */
+    public Coff getCoff() {
+	return coff;
+    }
+
+    /**
+     * Load a page of a section into main memory, from the cached copy if
+     * there is one, and from the executable otherwise (caching what was read).
+     *
+     * @param	section	the section number.
+     * @param	spn	the page number within the section.
+     * @param	ppn	the physical page to load into.
+     */
+    public void loadPage(int section, int spn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	byte[] page = pages[section][spn];
+
+	if (page != null) {
+	    System.arraycopy(page, 0, memory, ppn*pageSize, pageSize);
+	    return;
+	}
+
+	coff.getSection(section).loadPage(spn, ppn);
+
+	page = new byte[pageSize];
+	System.arraycopy(memory, ppn*pageSize, page, 0, pageSize);
+	pages[section][spn] = page;
+    }
+
+    /**
+     * Map a page of a read-only section, returning the physical page that
+     * holds it. If another process already has the page in memory, that page
+     * is shared and gains a reference; otherwise a new page is allocated and
+     * loaded.
+     *
+     * @param	section	the section number, which must be read-only.
+     * @param	spn	the page number within the section.
+     * @return	the physical page holding the section page, or -1 if memory
+     *		is full.
+     */
+    public int mapSharedPage(int section, int spn) {
+	Lib.assertTrue(sharedFrames[section] != null);
+
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	lock.acquire();
+
+	int ppn = sharedFrames[section][spn];
+	if (ppn != -1) {
+	    kernel.referencePage(ppn);
+	    lock.release();
+	    return ppn;
+	}
+
+	lock.release();
+
+	// allocating may evict another page of this image
+	int newPpn = kernel.getFreePage();
+	if (newPpn == -1)
+	    return -1;
+
+	lock.acquire();
+
+	ppn = sharedFrames[section][spn];
+	if (ppn != -1) {
+	    // another process loaded the page meanwhile
+	    kernel.referencePage(ppn);
+	    lock.release();
+	    kernel.free(newPpn);
+	    return ppn;
+	}
+
+	loadPage(section, spn, newPpn);
+	sharedFrames[section][spn] = newPpn;
+
+	lock.release();
+
+	return newPpn;
+    }
+
+    /**
+     * Unmap a page returned by <tt>mapSharedPage()</tt>, freeing it if no
+     * other process maps it.
+     *
+     * @param	section	the section number.
+     * @param	spn	the page number within the section.
+     * @param	ppn	the physical page that was mapped.
+     */
+    public void unmapSharedPage(int section, int spn, int ppn) {
+	lock.acquire();
+
+	if (((UserKernel) Kernel.kernel).free(ppn) &&
+	    sharedFrames[section][spn] == ppn)
+	    sharedFrames[section][spn] = -1;
+
+	lock.release();
+    }
+
+    /**
+     * Add a user of this image.
+     */
+    void reference() {
+	references++;
+    }
+
+    /**
+     * Remove a user of this image, closing the executable if it was the last.
+     */
+    void release() {
+	Lib.assertTrue(references > 0);
+
+	if (--references == 0)
+	    coff.close();
+    }
+
+    private String name;
+    private int stamp;
+    private Coff coff;
+    private byte[][][] pages;
+    /** For read-only sections, the physical page holding each page, or -1. */
+    private int[][] sharedFrames;
+    private Lock lock = new Lock();
+    private int references = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
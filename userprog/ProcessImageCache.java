@@ -0,0 +1,184 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed executables, so that a program that is
+ * executed over and over (for example, everything the shell runs) is opened
+ * and parsed only once. Images are keyed by file name and checked against the
+ * file's modification stamp in the <tt>OpenFileTable</tt>; an image whose
+ * file has since been written, recreated or unlinked is discarded.
+ * Executables are opened through the same table, so an image keeps its file
+ * open: unlinking an executable that is cached or running only marks it, and
+ * it is removed once the last image of it is released.
+ *
+ * <p>
+ * The cache holds at most <tt>UserKernel.imageCacheSize</tt> images (8 by
+ * default), evicting the least recently executed one. An evicted image stays
+ * valid for the processes still running it.
+ */
+public class ProcessImageCache {
+    /**
+     * Allocate a new process image cache.
+     *
+     * @param	files	the table to open executables through.
+     * @param	capacity	the maximum number of images to keep.
+     */
+    public ProcessImageCache(OpenFileTable files, int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.files = files;
+	this.capacity = capacity;
+    }
+
+    /**
+     * Return the image of an executable, parsing it if it is not cached. The
+     * caller must pass the image to <tt>release()</tt> when done with it.
+     *
+     * @param	name	the name of the executable file.
+     * @return	the image, or <tt>null</tt> if the file could not be opened
+     *		or is not a valid executable.
+     */
+    public ProcessImage acquire(String name) {
+	lock.acquire();
+
+	int stamp = files.getModificationStamp(name);
+
+	ProcessImage image = images.get(name);
+	if (image != null && image.getStamp() != stamp) {
+	    images.remove(name);
+	    image.release();
+	    image = null;
+	}
+
+	if (image != null) {
+	    hits++;
+	}
+	else {
+	    misses++;
+
+	    image = load(name, stamp);
+	    if (image == null) {
+		lock.release();
+		return null;
+	    }
+
+	    if (capacity > 0) {
+		image.reference();
+		images.put(name, image);
+		evict();
+	    }
+	}
+
+	image.reference();
+	lock.release();
+
+	return image;
+    }
+
+    /**
+     * Add a user to an image that has already been acquired, for example by
+     * a process that is being forked.
+     *
+     * @param	image	the image.
+     * @return	the image, which must eventually be passed to
+     *		<tt>release()</tt>.
+     */
+    public ProcessImage reference(ProcessImage image) {
+	lock.acquire();
+	image.reference();
+	lock.release();
+
+	return image;
+    }
+
+    /**
+     * Drop the cached image of an executable, if there is one, so that the
+     * cache no longer keeps the file open. Processes still running the image
+     * keep it.
+     *
+     * @param	name	the name of the executable file.
+     */
+    public void discard(String name) {
+	lock.acquire();
+
+	ProcessImage image = images.remove(name);
+	if (image != null)
+	    image.release();
+
+	lock.release();
+    }
+
+    /**
+     * Release an image returned by <tt>acquire()</tt>.
+     *
+     * @param	image	the image to release.
+     */
+    public void release(ProcessImage image) {
+	lock.acquire();
+	image.release();
+	lock.release();
+    }
+
+    private ProcessImage load(String name, int stamp) {
+	OpenFile executable = files.open(name, false);
+	if (executable == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return null;
+	}
+
+	try {
+	    return new ProcessImage(name, stamp, new Coff(executable));
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return null;
+	}
+    }
+
+    private void evict() {
+	Iterator<ProcessImage> i = images.values().iterator();
+	while (images.size() > capacity && i.hasNext()) {
+	    ProcessImage image = i.next();
+	    i.remove();
+	    image.release();
+	}
+    }
+
+    /**
+     * Return the number of <tt>acquire()</tt> calls that found a valid image.
+     *
+     * @return	the number of cache hits.
+     */
+    public int getHits() {
+	return hits;
+    }
+
+    /**
+     * Return the number of <tt>acquire()</tt> calls that had to parse the
+     * executable.
+     *
+     * @return	the number of cache misses.
+     */
+    public int getMisses() {
+	return misses;
+    }
+
+    private OpenFileTable files;
+    private int capacity;
+    private int hits = 0, misses = 0;
+
+    /** Cached images in least- to most-recently executed order. */
+    private LinkedHashMap<String, ProcessImage> images =
+	new LinkedHashMap<String, ProcessImage>(16, 0.75f, true);
+    private Lock lock = new Lock();
+
+    private static final char dbgProcess = 'a';
+}
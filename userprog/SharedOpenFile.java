@@ -0,0 +1,108 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An open file that can be referred to by several file descriptors, in one
+ * process or many. Every reference shares the same file position. The
+ * underlying file is closed when the last reference is closed, and the
+ * <tt>OpenFileTable</tt> it was opened through, if any, is told about it.
+ */
+public class SharedOpenFile extends OpenFile {
+    /**
+     * Allocate a new shared file with a single reference.
+     *
+     * @param	file	the underlying open file.
+     */
+    public SharedOpenFile(OpenFile file) {
+	this(file, null);
+    }
+
+    /**
+     * Allocate a new shared file with a single reference, opened through the
+     * specified open file table.
+     *
+     * @param	file	the underlying open file.
+     * @param	table	the table to notify when the last reference is
+     *			closed, or <tt>null</tt>.
+     */
+    public SharedOpenFile(OpenFile file, OpenFileTable table) {
+	super(file.getFileSystem(), file.getName());
+
+	this.file = file;
+	this.table = table;
+    }
+
+    /**
+     * Add a reference to this file.
+     *
+     * @return	this file.
+     */
+    public SharedOpenFile reference() {
+	Lib.assertTrue(references > 0);
+
+	references++;
+	return this;
+    }
+
+    /**
+     * Return the underlying open file.
+     *
+     * @return	the underlying open file.
+     */
+    public OpenFile getFile() {
+	return file;
+    }
+
+    /**
+     * Drop one reference to this file, closing the underlying file if it was
+     * the last one.
+     */
+    public void close() {
+	Lib.assertTrue(references > 0);
+
+	if (--references == 0) {
+	    file.close();
+	    if (table != null)
+		table.release(getName());
+	}
+    }
+
+    public int read(int pos, byte[] buf, int offset, int length) {
+	return file.read(pos, buf, offset, length);
+    }
+
+    public int write(int pos, byte[] buf, int offset, int length) {
+	if (table != null)
+	    table.modified(getName());
+	return file.write(pos, buf, offset, length);
+    }
+
+    public int length() {
+	return file.length();
+    }
+
+    public void seek(int pos) {
+	file.seek(pos);
+    }
+
+    public int tell() {
+	return file.tell();
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+	return file.read(buf, offset, length);
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+	if (table != null)
+	    table.modified(getName());
+	return file.write(buf, offset, length);
+    }
+
+    private OpenFile file;
+    private OpenFileTable table;
+    private int references = 1;
+}
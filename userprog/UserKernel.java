@@ -25,12 +25,17 @@ public class UserKernel extends ThreadedKernel {
 
                 freeListLock = new Lock();
                 freePhysicalPages = new LinkedList<Integer>();
+                pageReferences = new int[Machine.processor().getNumPhysPages()];
 
                 for(int i=0; i<Machine.processor().getNumPhysPages(); i++){
                         freePhysicalPages.add(i);
                 }
 
                 console = new SynchConsole(Machine.console());
+                openFileTable = new OpenFileTable(fileSystem);
+                imageCache = new ProcessImageCache(openFileTable,
+                                Config.getInteger("UserKernel.imageCacheSize", 8));
+                pipeCapacity = Config.getInteger("UserKernel.pipeCapacity", 512);
 
                 Machine.processor().setExceptionHandler(new Runnable() {
                         public void run() { exceptionHandler(); }
@@ -38,25 +43,21 @@ public class UserKernel extends ThreadedKernel {
         }
 
         /**
-         * Test the console device.
-         */    
+         * Check that a process with no program loaded has no valid pages.
+         */
         public void selfTest() {
-	  super.selfTest();
-	UserProcess P=new UserProcess();
-	byte[] data=new byte[20];
-	byte[] in_data="success".getBytes();
-	int k=P.writeVirtualMemory(200,in_data);
-	int l=P.readVirtualMemory(200,data);	
-	int n=P.handleSyscall(4,200,0,0,0);
-	//int m=P.handleSyscall(4,200,0,0,0);
-	int test=P.handleSyscall(5,200,0,0,0);
-	//int y=P.handleSyscall(6,3,300,7,0);
-	//int x=P.handleSyscall(9,200,0,0,0);
-	int test_close=P.handleSyscall(8,n,0,0,0);
-	String s=P.readVirtualMemoryString(300,7);
-// 	for(int i=0;i<in_data.length;i++) System.out.println((char)in_data[i]);
-	System.out.println(n+" "+data[0]+" "+k+" "+l+" "+test+" "+s+" "+test_close);
-	
+                super.selfTest();
+
+                // Pages only become valid as a program is loaded, so a process
+                // that has loaded nothing cannot touch any of its memory, and
+                // syscalls that take a filename from it fail.
+                UserProcess process = new UserProcess();
+                byte[] data = "success".getBytes();
+                Lib.assertTrue(process.writeVirtualMemory(200, data) == 0);
+                Lib.assertTrue(process.readVirtualMemory(200, new byte[20]) == 0);
+                Lib.assertTrue(process.readVirtualMemoryString(200, 7) == null);
+                Lib.assertTrue(process.handleSyscall(4, 200, 0, 0, 0) == -1);
+                Lib.assertTrue(process.handleSyscall(5, 200, 0, 0, 0) == -1);
         }
 
         /**
@@ -117,22 +118,67 @@ public class UserKernel extends ThreadedKernel {
                 super.terminate();
         }
 
+        /**
+         * Allocate a physical page with a single reference to it.
+         *
+         * @return the physical page number, or -1 if memory is full.
+         */
         public int getFreePage(){
                 freeListLock.acquire();
+                if(freePhysicalPages.isEmpty()){
+                        freeListLock.release();
+                        return -1;
+                }
                 int freePage = freePhysicalPages.removeFirst();
+                pageReferences[freePage] = 1;
                 freeListLock.release();
                 return freePage;
         }
-       
-        public void free(int ppn){
+
+        /**
+         * Add a reference to an allocated physical page, so that one more
+         * call to <tt>free()</tt> is needed before it is returned to the free
+         * list.
+         *
+         * @param ppn the physical page number.
+         */
+        public void referencePage(int ppn){
                 freeListLock.acquire();
-                Lib.assertTrue(!freePhysicalPages.contains(ppn),
+                Lib.assertTrue(pageReferences[ppn] > 0);
+                pageReferences[ppn]++;
+                freeListLock.release();
+        }
+
+        /**
+         * Return the number of references to a physical page.
+         *
+         * @param ppn the physical page number.
+         * @return the reference count, 0 if the page is free.
+         */
+        public int pageReferences(int ppn){
+                return pageReferences[ppn];
+        }
+
+        /**
+         * Drop a reference to a physical page, returning it to the free list
+         * if it was the last one.
+         *
+         * @param ppn the physical page number.
+         * @return <tt>true</tt> if the page is now free.
+         */
+        public boolean free(int ppn){
+                freeListLock.acquire();
+                Lib.assertTrue(pageReferences[ppn] > 0,
                                 "Duplicate free page entry: " + ppn + "\n" + freePhysicalPages);
 
-                freePhysicalPages.add(ppn);
+                boolean released = --pageReferences[ppn] == 0;
+                if(released){
+                        freePhysicalPages.add(ppn);
+                }
                 freeListLock.release();
+                return released;
         }
-       
+
         public int numFreePages(){
                 freeListLock.acquire();
                 int size = freePhysicalPages.size();
@@ -143,6 +189,15 @@ public class UserKernel extends ThreadedKernel {
         /** Globally accessible reference to the synchronized console. */
         public static SynchConsole console;
 
+        /** The table of disk files open in any user process. */
+        public static OpenFileTable openFileTable;
+
+        /** Parsed executables, shared by processes running the same program. */
+        public static ProcessImageCache imageCache;
+
+        /** The number of bytes a pipe can hold. */
+        public static int pipeCapacity;
+
         // dummy variables to make javac smarter
         private static Coff dummy1 = null;
 
@@ -152,5 +207,8 @@ public class UserKernel extends ThreadedKernel {
          */
         protected Lock freeListLock;
         protected LinkedList<Integer> freePhysicalPages;
+
+        /** The number of page table entries mapping each physical page. */
+        protected int[] pageReferences;
 }
 
@@ -5,7 +5,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
 import java.nio.ByteBuffer;
 
 /**
@@ -21,20 +20,15 @@ import java.nio.ByteBuffer;
  * @see nachos.network.NetProcess
  */
 public class UserProcess {
-        protected static final int numVirtualPages = 64;
         /**
          * Allocate a new process.
          */
         public UserProcess() {
                 childExitStatuses = new HashMap<Integer, Integer>();
                 children = new HashMap<Integer, UserProcess>();
-		pageTable = new TranslationEntry[numVirtualPages];
 
-                for (int i=0; i<numVirtualPages; i++)
-                        pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-
-                descriptorTable.add(0, UserKernel.console.openForReading());
-                descriptorTable.add(1, UserKernel.console.openForWriting());
+                installDescriptor(0, new SharedOpenFile(UserKernel.console.openForReading()));
+                installDescriptor(1, new SharedOpenFile(UserKernel.console.openForWriting()));
 
                 pidLock.acquire();
                 pid = currentPID;
@@ -53,6 +47,15 @@ public class UserProcess {
                 return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
         }
 
+        /**
+         * Return this process's process ID.
+         *
+         * @return      the process ID.
+         */
+        public int getPID() {
+                return pid;
+        }
+
         /**
          * Execute the specified program with the specified arguments. Attempts to
          * load the program, and then forks a thread to run it.
@@ -62,6 +65,25 @@ public class UserProcess {
          * @return      <tt>true</tt> if the program was successfully executed.
          */
         public boolean execute(String name, String[] args) {
+                ArgumentList list = new ArgumentList(maxArgumentPages*pageSize);
+                for (int i=0; i<args.length; i++) {
+                        if (!list.add(args[i], false))
+                                return false;
+                }
+
+                return execute(name, list);
+        }
+
+        /**
+         * Execute the specified program with the specified arguments and
+         * environment, which are copied into the new program's memory.
+         *
+         * @param       name    the name of the file containing the executable.
+         * @param       args    the arguments and environment to pass to the
+         *                      executable.
+         * @return      <tt>true</tt> if the program was successfully executed.
+         */
+        public boolean execute(String name, ArgumentList args) {
                 if (!load(name, args)){
                         return false;
                 }
@@ -89,15 +111,103 @@ public class UserProcess {
          * <tt>UThread.restoreState()</tt>.
          */
         public void restoreState() {
-                Machine.processor().setPageTable(pageTable);
+                Machine.processor().setPageTable(linearPageTable);
+        }
+
+        /**
+         * Return the state of a virtual page of this process.
+         *
+         * @param       vpn     the virtual page number.
+         * @return      the page, or <tt>null</tt> if the page has never been
+         *              used.
+         */
+        protected VirtualPage getPage(int vpn) {
+                return pageTable.get(vpn);
+        }
+
+        /**
+         * Return the state of a virtual page of this process, adding the page
+         * to the page table if it is not there yet.
+         *
+         * @param       vpn     the virtual page number.
+         * @return      the page.
+         */
+        protected VirtualPage createPage(int vpn) {
+                VirtualPage page = pageTable.get(vpn);
+                if (page == null) {
+                        page = newPage(vpn);
+                        pageTable.put(vpn, page);
+                        setLinearEntry(vpn, page.entry);
+                }
+
+                return page;
+        }
+
+        /**
+         * Allocate the state of a virtual page that is not resident.
+         * Subclasses that keep more state per page override this.
+         *
+         * @param       vpn     the virtual page number.
+         * @return      the new page.
+         */
+        protected VirtualPage newPage(int vpn) {
+                return new VirtualPage(vpn);
+        }
+
+        /**
+         * Remove a page that is not resident from the page table.
+         *
+         * @param       vpn     the virtual page number.
+         */
+        protected void removePage(int vpn) {
+                VirtualPage page = pageTable.remove(vpn);
+                if (page != null) {
+                        Lib.assertTrue(!page.entry.valid);
+                        setLinearEntry(vpn, null);
+                }
+        }
+
+        /**
+         * Test whether a virtual page of this process is resident.
+         *
+         * @param       vpn     the virtual page number.
+         * @return      <tt>true</tt> if the page has a valid translation.
+         */
+        protected boolean isResident(int vpn) {
+                VirtualPage page = pageTable.get(vpn);
+                return page != null && page.entry.valid;
         }
 
         /**
-         * Read a null-terminated string from this process's virtual memory. Read
-         * at most <tt>maxLength + 1</tt> bytes from the specified address, search
-         * for the null terminator, and convert it to a <tt>java.lang.String</tt>,
-         * without including the null terminator. If no null terminator is found,
-         * returns <tt>null</tt>.
+         * Keep the linear page table, which a processor without a TLB indexes
+         * by virtual page number, in step with the page table. The linear table
+         * only reaches as far as the highest page used, and grows when a page
+         * past its end is added.
+         */
+        private void setLinearEntry(int vpn, TranslationEntry entry) {
+                if (Machine.processor().hasTLB())
+                        return;
+
+                if (vpn >= linearPageTable.length) {
+                        if (entry == null)
+                                return;
+
+                        linearPageTable = Arrays.copyOf(linearPageTable,
+                                        Math.max(vpn+1, Math.min(2*linearPageTable.length,
+                                                        Processor.maxPages)));
+                        if (UserKernel.currentProcess() == this)
+                                Machine.processor().setPageTable(linearPageTable);
+                }
+
+                linearPageTable[vpn] = entry;
+        }
+
+        /**
+         * Read a null-terminated string from this process's virtual memory. Scan
+         * at most <tt>maxLength + 1</tt> bytes from the specified address in
+         * place for the null terminator, and convert the bytes before it to a
+         * <tt>java.lang.String</tt>. If no null terminator is found, returns
+         * <tt>null</tt>.
          *
          * @param       vaddr   the starting virtual address of the null-terminated
          *                      string.
@@ -109,16 +219,60 @@ public class UserProcess {
         public String readVirtualMemoryString(int vaddr, int maxLength) {
                 Lib.assertTrue(maxLength >= 0);
 
-                byte[] bytes = new byte[maxLength+1];
+                int length = stringLength(vaddr, maxLength);
+                if (length < 0)
+                        return null;
+
+                // The common case is a string inside one physically contiguous
+                // run, which can be decoded straight out of main memory.
+                memoryRun.reset(vaddr, length, false);
+                if (!memoryRun.next())
+                        return "";
+                if (memoryRun.getLength() == length) {
+                        String string = new String(Machine.processor().getMemory(),
+                                        memoryRun.getPhysicalAddress(), length);
+                        memoryRun.release();
+                        return string;
+                }
+                memoryRun.release();
+
+                byte[] bytes = new byte[length];
+                readVirtualMemory(vaddr, bytes);
+                return new String(bytes);
+        }
+
+        /**
+         * Find the length of a null-terminated string in this process's virtual
+         * memory by scanning main memory in place.
+         *
+         * @param       vaddr   the starting virtual address of the string.
+         * @param       maxLength       the maximum number of characters in the string,
+         *                              not including the null terminator.
+         * @return      the number of bytes before the null terminator, or -1 if no
+         *              null terminator was found.
+         */
+        public int stringLength(int vaddr, int maxLength) {
+                Lib.assertTrue(maxLength >= 0);
+
+                byte[] memory = Machine.processor().getMemory();
+                int length = 0;
+
+                memoryRun.reset(vaddr, maxLength+1, false);
+                while (memoryRun.next()) {
+                        int paddr = memoryRun.getPhysicalAddress();
+                        int end = paddr + memoryRun.getLength();
 
-                int bytesRead = readVirtualMemory(vaddr, bytes);
+                        for (int i=paddr; i<end; i++) {
+                                if (memory[i] == 0) {
+                                        memoryRun.release();
+                                        return length + (i-paddr);
+                                }
+                        }
 
-                for (int length=0; length<bytesRead; length++) {
-                        if (bytes[length] == 0)
-                                return new String(bytes, 0, length);
+                        length += memoryRun.getLength();
                 }
 
-                return null;
+                return -1;
         }
 
         /**
@@ -147,7 +301,39 @@ public class UserProcess {
          *                      the array.
          * @return      the number of bytes successfully transferred.
          */
-        
+        public int readVirtualMemory(int vaddr, byte[] data, int offset,
+                        int length) {
+                return readVirtualMemory(memoryRun, vaddr, data, offset, length);
+        }
+
+        /**
+         * Same as <tt>readVirtualMemory(vaddr, data, offset, length)</tt>, but
+         * walks memory with the specified iterator, so that kernel threads other
+         * than this process's own can transfer data concurrently.
+         *
+         * @param       run     an iterator over this process's memory.
+         * @param       vaddr   the first byte of virtual memory to read.
+         * @param       data    the array where the data will be stored.
+         * @param       offset  the first byte to write in the array.
+         * @param       length  the number of bytes to transfer.
+         * @return      the number of bytes successfully transferred.
+         */
+        public int readVirtualMemory(PageRunIterator run, int vaddr, byte[] data,
+                        int offset, int length) {
+                Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
+                byte[] memory = Machine.processor().getMemory();
+                int bytesCopied = 0;
+
+                run.reset(vaddr, length, false);
+                while (run.next()) {
+                        System.arraycopy(memory, run.getPhysicalAddress(),
+                                        data, offset+bytesCopied, run.getLength());
+                        bytesCopied += run.getLength();
+                }
+
+                return bytesCopied;
+        }
 
         /**
          * Transfer all data from the specified array to this process's virtual
@@ -160,48 +346,6 @@ public class UserProcess {
          */
         public int writeVirtualMemory(int vaddr, byte[] data) {
                 return writeVirtualMemory(vaddr, data, 0, data.length);
-        }public int readVirtualMemory(int vaddr, byte[] data, int offset,
-                        int length) {
-                Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-                byte[] memory = Machine.processor().getMemory();
-
-                if (vaddr < 0 || vaddr >= memory.length)
-                        return 0;
-
-                // These calculations are in case the address+length interval
-                // crosses a virtual page boundary. If they do, we need to look
-                // up two addresses.
-
-                int currentVaddr = vaddr;
-                int startVpn = vaddr/pageSize;
-                int endVpn = (vaddr+length)/pageSize;
-                int initialOffset = vaddr % pageSize;
-                int bytesCopied = offset;
-
-                for(int i=startVpn; i<=endVpn; i++){
-                        int ppn = pageTable[i].ppn;
-                        pageTable[i].used = true;
-                       
-                        int paddr = ppn*pageSize + initialOffset;
-                       
-                        // This calculation finds the amount of bytes that can be copied
-                        // before reaching a virtual page boundary.
-                        int bytesToCopy = Math.min(
-                                        (((currentVaddr/pageSize)+1)*pageSize) - currentVaddr,
-                                        length);
-
-                        System.arraycopy(memory, paddr, data, bytesCopied, bytesToCopy);
-                       
-                        // Only used once on the initial copy, after we cross a page boundary
-                        // then the next read always starts at offset 0;
-                        initialOffset = 0;
-                        bytesCopied += bytesToCopy;
-                        currentVaddr += bytesToCopy;
-                        length -= bytesToCopy;
-                }
-
-                return bytesCopied - offset;
         }
 
         /**
@@ -220,46 +364,331 @@ public class UserProcess {
          */
         public int writeVirtualMemory(int vaddr, byte[] data, int offset,
                         int length) {
+                return writeVirtualMemory(memoryRun, vaddr, data, offset, length);
+        }
+
+        /**
+         * Same as <tt>writeVirtualMemory(vaddr, data, offset, length)</tt>, but
+         * walks memory with the specified iterator.
+         *
+         * @param       run     an iterator over this process's memory.
+         * @param       vaddr   the first byte of virtual memory to write.
+         * @param       data    the array containing the data to transfer.
+         * @param       offset  the first byte to transfer from the array.
+         * @param       length  the number of bytes to transfer.
+         * @return      the number of bytes successfully transferred.
+         */
+        public int writeVirtualMemory(PageRunIterator run, int vaddr, byte[] data,
+                        int offset, int length) {
                 Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
+
                 byte[] memory = Machine.processor().getMemory();
+                int bytesCopied = 0;
 
-                if (vaddr < 0 || vaddr/pageSize >= numVirtualPages)
-                        return 0;
+                run.reset(vaddr, length, true);
+                while (run.next()) {
+                        System.arraycopy(data, offset+bytesCopied, memory,
+                                        run.getPhysicalAddress(), run.getLength());
+                        bytesCopied += run.getLength();
+                }
+
+                return bytesCopied;
+        }
+
+        /**
+         * Stream data from a file into this process's virtual memory in chunks
+         * of at most <tt>transferBufferSize</tt> bytes. A chunk whose pages are
+         * physically contiguous is read directly into main memory; any other
+         * chunk, and every chunk read from a stream such as a pipe, is staged
+         * through this process's reusable transfer buffer, so that it still
+         * costs a single file operation; its pages are checked first, so that
+         * no data is read from the file that cannot be stored. Stops at the
+         * first short read, or at the first invalid page.
+         *
+         * @param       file    the file to read from, at its current position.
+         * @param       vaddr   the first byte of virtual memory to write.
+         * @param       length  the maximum number of bytes to transfer.
+         * @return      the number of bytes transferred, or -1 if nothing could
+         *              be transferred because the buffer starts on an invalid
+         *              page or the read failed.
+         */
+        public int readFileToVirtualMemory(OpenFile file, int vaddr, int length) {
+                return readFileToVirtualMemory(file, -1, vaddr, length,
+                                memoryRun, getTransferBuffer());
+        }
+
+        /**
+         * Same as <tt>readFileToVirtualMemory(file, vaddr, length)</tt>, but
+         * reads from an explicit file position and uses the specified iterator
+         * and staging buffer.
+         *
+         * @param       file    the file to read from.
+         * @param       position        the file offset to read from, or -1 to read
+         *                              at the file's current position.
+         * @param       vaddr   the first byte of virtual memory to write.
+         * @param       length  the maximum number of bytes to transfer.
+         * @param       run     an iterator over this process's memory.
+         * @param       buffer  a staging buffer of <tt>transferBufferSize</tt> bytes.
+         * @return      the number of bytes transferred, or -1 on error.
+         */
+        public int readFileToVirtualMemory(OpenFile file, int position, int vaddr,
+                        int length, PageRunIterator run, byte[] buffer) {
+                byte[] memory = Machine.processor().getMemory();
+                int bytesCopied = 0;
+
+                while (bytesCopied < length) {
+                        int chunkVaddr = vaddr + bytesCopied;
+                        int chunk = Math.min(length - bytesCopied, transferBufferSize);
+                        int amount;
+
+                        run.reset(chunkVaddr, chunk, true);
+                        if (!run.next())
+                                return (bytesCopied == 0) ? -1 : bytesCopied;
+
+                        if (run.getLength() == chunk && !isStream(file)) {
+                                amount = readFile(file, position, memory,
+                                                run.getPhysicalAddress(), chunk);
+                                run.release();
+                        }else{
+                                // find how much of the chunk can be written
+                                // before any of the file is consumed
+                                int valid = run.getLength();
+                                while (run.next())
+                                        valid += run.getLength();
+                                if (valid < chunk) {
+                                        // the rest of the buffer is invalid, so
+                                        // this is the last chunk
+                                        chunk = valid;
+                                        length = bytesCopied + valid;
+                                }
+
+                                amount = readFile(file, position, buffer, 0, chunk);
+                                if (amount > 0) {
+                                        int written = writeVirtualMemory(run, chunkVaddr,
+                                                        buffer, 0, amount);
+                                        if (written < amount) {
+                                                // only if memory ran out; give back
+                                                // what did not arrive
+                                                if (position < 0)
+                                                        file.seek(file.tell() - (amount - written));
+                                                return (bytesCopied + written == 0) ? -1
+                                                        : bytesCopied + written;
+                                        }
+                                }
+                        }
+
+                        if (amount < 0)
+                                return (bytesCopied == 0) ? -1 : bytesCopied;
+
+                        bytesCopied += amount;
+                        if (position >= 0)
+                                position += amount;
+                        if (amount < chunk)
+                                break;
+                }
+
+                return bytesCopied;
+        }
+
+        /**
+         * Stream data from this process's virtual memory to a file in chunks of
+         * at most <tt>transferBufferSize</tt> bytes. A chunk whose pages are
+         * physically contiguous is written directly from main memory; any other
+         * chunk, and every chunk written to a stream such as a pipe, is gathered
+         * into this process's reusable transfer buffer first. The data is
+         * treated as raw bytes. Stops at the first short write, or
+         * at the first invalid page.
+         *
+         * @param       file    the file to write to, at its current position.
+         * @param       vaddr   the first byte of virtual memory to read.
+         * @param       length  the number of bytes to transfer.
+         * @return      the number of bytes transferred, or -1 if nothing could
+         *              be transferred because the buffer starts on an invalid
+         *              page or the write failed.
+         */
+        public int writeVirtualMemoryToFile(OpenFile file, int vaddr, int length) {
+                return writeVirtualMemoryToFile(file, -1, vaddr, length,
+                                memoryRun, getTransferBuffer());
+        }
+
+        /**
+         * Same as <tt>writeVirtualMemoryToFile(file, vaddr, length)</tt>, but
+         * writes at an explicit file position and uses the specified iterator
+         * and staging buffer.
+         *
+         * @param       file    the file to write to.
+         * @param       position        the file offset to write at, or -1 to write
+         *                              at the file's current position.
+         * @param       vaddr   the first byte of virtual memory to read.
+         * @param       length  the number of bytes to transfer.
+         * @param       run     an iterator over this process's memory.
+         * @param       buffer  a staging buffer of <tt>transferBufferSize</tt> bytes.
+         * @return      the number of bytes transferred, or -1 on error.
+         */
+        public int writeVirtualMemoryToFile(OpenFile file, int position, int vaddr,
+                        int length, PageRunIterator run, byte[] buffer) {
+                byte[] memory = Machine.processor().getMemory();
+                int bytesCopied = 0;
+
+                while (bytesCopied < length) {
+                        int chunkVaddr = vaddr + bytesCopied;
+                        int chunk = Math.min(length - bytesCopied, transferBufferSize);
+                        int amount;
+
+                        run.reset(chunkVaddr, chunk, false);
+                        if (!run.next())
+                                return (bytesCopied == 0) ? -1 : bytesCopied;
+
+                        if (run.getLength() == chunk && !isStream(file)) {
+                                amount = writeFile(file, position, memory,
+                                                run.getPhysicalAddress(), chunk);
+                        }else{
+                                int valid = readVirtualMemory(run, chunkVaddr, buffer, 0, chunk);
+                                if (valid < chunk) {
+                                        // the rest of the buffer is invalid, so
+                                        // this is the last chunk
+                                        chunk = valid;
+                                        length = bytesCopied + valid;
+                                }
+                                amount = writeFile(file, position, buffer, 0, chunk);
+                        }
+
+                        run.release();
+
+                        if (amount < 0)
+                                return (bytesCopied == 0) ? -1 : bytesCopied;
+
+                        bytesCopied += amount;
+                        if (position >= 0)
+                                position += amount;
+                        if (amount < chunk)
+                                break;
+                }
+
+                return bytesCopied;
+        }
+
+        /**
+         * Test whether a file is a stream with no length, such as a pipe. A
+         * stream may block for as long as the process at the other end likes,
+         * so memory is never left pinned across a transfer with one.
+         */
+        private static boolean isStream(OpenFile file) {
+                return file.length() < 0;
+        }
+
+        private static int readFile(OpenFile file, int position, byte[] buf,
+                        int offset, int length) {
+                if (position < 0)
+                        return file.read(buf, offset, length);
+                else
+                        return file.read(position, buf, offset, length);
+        }
+
+        private static int writeFile(OpenFile file, int position, byte[] buf,
+                        int offset, int length) {
+                if (position < 0)
+                        return file.write(buf, offset, length);
+                else
+                        return file.write(position, buf, offset, length);
+        }
+
+        /**
+         * Return this process's transfer buffer, allocating it on first use.
+         */
+        protected byte[] getTransferBuffer() {
+                if (transferBuffer == null)
+                        transferBuffer = new byte[transferBufferSize];
+
+                return transferBuffer;
+        }
+
+        /**
+         * Return the physical page backing a virtual page of this process, so
+         * that the kernel can transfer data to or from it. Marks the page used,
+         * and dirty if <i>writing</i>. Subclasses override this to bring
+         * non-resident pages into memory.
+         *
+         * @param       vpn     the virtual page number.
+         * @param       writing <tt>true</tt> if the kernel will write to the page.
+         * @return      the physical page number, or -1 if the page is not mapped,
+         *              or is read-only and <i>writing</i> is <tt>true</tt>.
+         */
+        protected int translatePage(int vpn, boolean writing) {
+                VirtualPage page = getPage(vpn);
+                if (page == null || !page.entry.valid)
+                        return -1;
+
+                TranslationEntry entry = page.entry;
+                if (writing && entry.readOnly && !breakCopyOnWrite(vpn))
+                        return -1;
+
+                entry.used = true;
+                if (writing)
+                        entry.dirty = true;
+
+                return entry.ppn;
+        }
+
+        /**
+         * Translate a virtual page like <tt>translatePage()</tt>, and keep it in
+         * the same physical page until <tt>unpinPage()</tt> is called, so that
+         * the kernel can block while transferring data to or from it. Pages never
+         * move in this implementation; subclasses that page memory out override
+         * both methods.
+         *
+         * @param vpn the virtual page number.
+         * @param writing <tt>true</tt> if the kernel will write to the page.
+         * @return the pinned physical page number, or -1 if the page cannot be
+         * accessed.
+         */
+        protected int pinPage(int vpn, boolean writing) {
+                return translatePage(vpn, writing);
+        }
 
-                // These calculations are in case the address+length interval
-                // crosses a virtual page boundary. If they do, we need to look
-                // up two addresses.
+        /**
+         * Unpin a physical page returned by <tt>pinPage()</tt>.
+         *
+         * @param ppn the physical page number.
+         */
+        protected void unpinPage(int ppn) {
+        }
 
-                int currentVaddr = vaddr;
-                int startVpn = vaddr/pageSize;
-                int endVpn = (vaddr+length)/pageSize;
-                int initialOffset = vaddr % pageSize;
-                int bytesCopied = offset;
+        /**
+         * Give this process its own copy of a page it shares copy-on-write
+         * with other processes, and make the page writable. If no other
+         * process still maps the page, it is made writable without copying.
+         *
+         * @param vpn the virtual page number.
+         * @return <tt>true</tt> if the page is now writable, <tt>false</tt>
+         * if it is not a copy-on-write page or memory is full.
+         */
+        protected boolean breakCopyOnWrite(int vpn) {
+                VirtualPage page = getPage(vpn);
+                if (page == null || !page.copyOnWrite)
+                        return false;
 
-                for(int i=startVpn; i<=endVpn; i++){
-                        int ppn = pageTable[i].ppn;
-                        pageTable[i].used = true;
-                        pageTable[i].dirty = true;
+                TranslationEntry entry = page.entry;
+                if (!entry.valid)
+                        return false;
 
-                        int paddr = ppn*pageSize + initialOffset;
-                       
-                        // This calculation finds the amount of bytes that can be copied
-                        // before reaching a virtual page boundary.
-                        int bytesToCopy = Math.min(
-                                        (((currentVaddr/pageSize)+1)*pageSize) - currentVaddr,
-                                        length);
+                UserKernel kernel = (UserKernel)Kernel.kernel;
+                if(kernel.pageReferences(entry.ppn) > 1){
+                        int ppn = kernel.getFreePage();
+                        if(ppn == -1){
+                                return false;
+                        }
 
-                        System.arraycopy(data, bytesCopied, memory, paddr, bytesToCopy);
-                       
-                        // Only used once on the initial copy, after we cross a page boundary
-                        // then the next read always starts at offset 0;
-                        initialOffset = 0;
-                        bytesCopied += bytesToCopy;
-                        currentVaddr += bytesToCopy;
-                        length -= bytesToCopy;
+                        byte[] memory = Machine.processor().getMemory();
+                        System.arraycopy(memory, entry.ppn*pageSize,
+                                        memory, ppn*pageSize, pageSize);
+                        kernel.free(entry.ppn);
+                        entry.ppn = ppn;
                 }
 
-                return bytesCopied - offset;
+                entry.readOnly = false;
+                page.copyOnWrite = false;
+                return true;
         }
 
         /**
@@ -269,54 +698,32 @@ public class UserProcess {
          * process's virtual memory.
          *
          * @param       name    the name of the file containing the executable.
-         * @param       args    the arguments to pass to the executable.
+         * @param       args    the arguments and environment to pass to the
+         *                      executable.
          * @return      <tt>true</tt> if the executable was successfully loaded.
          */
-        private boolean load(String name, String[] args) {
+        private boolean load(String name, ArgumentList args) {
                 Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-                OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-                if (executable == null) {
-                        Lib.debug(dbgProcess, "\topen failed");
-                        return false;
-                }
-
-                try {
-                        coff = new Coff(executable);
-                }catch (EOFException e) {
-                        executable.close();
-                        e.printStackTrace();
-                        Lib.debug(dbgProcess, "\tcoff load failed");
+                // Repeated execs of a program reuse its parsed image.
+                image = UserKernel.imageCache.acquire(name);
+                if (image == null) {
                         return false;
                 }
+                coff = image.getCoff();
 
                 // make sure the sections are contiguous and start at page 0
                 numPages = 0;
                 for (int s=0; s<coff.getNumSections(); s++) {
                         CoffSection section = coff.getSection(s);
                         if (section.getFirstVPN() != numPages) {
-                                coff.close();
+                                releaseImage();
                                 Lib.debug(dbgProcess, "\tfragmented executable");
                                 return false;
                         }
                         numPages += section.getLength();
                 }
 
-                // make sure the argv array will fit in one page
-                byte[][] argv = new byte[args.length][];
-                int argsSize = 0;
-                for (int i=0; i<args.length; i++) {
-                        argv[i] = args[i].getBytes();
-                        // 4 bytes for argv[] pointer; then string plus one for null byte
-                        argsSize += 4 + argv[i].length + 1;
-                }
-
-                if (argsSize > pageSize) {
-                        coff.close();
-                        Lib.debug(dbgProcess, "\targuments too long");
-                        return false;
-                }
-
                 // program counter initially points at the program entry point
                 initialPC = coff.getEntryPoint();      
 
@@ -324,28 +731,28 @@ public class UserProcess {
                 numPages += stackPages;
                 initialSP = numPages*pageSize;
 
-                // and finally reserve 1 page for arguments
-                numPages++;
-
-                if (!loadSections())
-                        return false;
+                // and finally, above it, as many pages as the arguments and
+                // environment need
+                numPages += (args.getSize() + pageSize - 1) / pageSize;
 
-                // store arguments in last page
-                int entryOffset = (numPages-1)*pageSize;
-                int stringOffset = entryOffset + args.length*4;
+                // the heap starts out empty, just above the arguments
+                heapStart = programBreak = numPages*pageSize;
 
-                this.argc = args.length;
-                this.argv = entryOffset;
+                if (!loadSections()) {
+                        unloadSections();
+                        releaseImage();
+                        return false;
+                }
 
-                for (int i=0; i<argv.length; i++) {
-                        byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-                        Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-                        entryOffset += 4;
-                        Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-                                argv[i].length);
-                        stringOffset += argv[i].length;
-                        Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-                        stringOffset += 1;
+                // copy the arguments and environment in above the stack
+                this.argc = args.getNumArguments();
+                this.argv = initialSP;
+                this.envp = args.write(this, argv);
+                if (envp == -1) {
+                        Lib.debug(dbgProcess, "\tcould not copy arguments");
+                        unloadSections();
+                        releaseImage();
+                        return false;
                 }
 
                 return true;
@@ -360,24 +767,14 @@ public class UserProcess {
          */
         protected boolean loadSections() {
                 if (numPages > Machine.processor().getNumPhysPages()) {
-                        coff.close();
                         Lib.debug(dbgProcess, "\tinsufficient physical memory");
                         return false;
                 }
 
-                // Set up page table by requesting free memory from kernel.
-                for(int i=0; i<numPages; i++){
-                        // Get a free page from the kernel.
-                        if(((UserKernel)Kernel.kernel).numFreePages() == 0){
-                                return false;
-                        }
+                UserKernel kernel = (UserKernel)Kernel.kernel;
 
-                        int ppn = ((UserKernel)Kernel.kernel).getFreePage();
-                        pageTable[i].ppn = ppn;
-                        pageTable[i].used = true;
-                }
-
-                // load sections
+                // load sections; read-only pages are shared with every other
+                // process running the same image
                 for (int s=0; s<coff.getNumSections(); s++) {
                         CoffSection section = coff.getSection(s);
 
@@ -386,54 +783,128 @@ public class UserProcess {
 
                         for (int i=0; i<section.getLength(); i++) {
                                 int vpn = section.getFirstVPN()+i;
+                                if(vpn < 0 || vpn >= numPages || isResident(vpn)){
+                                        return false;
+                                }
 
-                                pageTable[vpn].readOnly = section.isReadOnly();
-                                if(pageTable[vpn].vpn != vpn){
+                                int ppn;
+                                if(section.isReadOnly()){
+                                        ppn = image.mapSharedPage(s, i);
+                                }else{
+                                        ppn = kernel.getFreePage();
+                                        if(ppn != -1){
+                                                image.loadPage(s, i, ppn);
+                                        }
+                                }
+                                if(ppn == -1){
+                                        Lib.debug(dbgProcess, "\tinsufficient physical memory");
                                         return false;
                                 }
-                                section.loadPage(i, pageTable[vpn].ppn);
+
+                                TranslationEntry entry = createPage(vpn).entry;
+                                entry.ppn = ppn;
+                                entry.readOnly = section.isReadOnly();
+                                entry.valid = true;
+                        }
+                }
+
+                // the stack and argument pages start out zeroed
+                byte[] memory = Machine.processor().getMemory();
+                for(int vpn=0; vpn<numPages; vpn++){
+                        if(isResident(vpn)){
+                                continue;
+                        }
+
+                        int ppn = kernel.getFreePage();
+                        if(ppn == -1){
+                                Lib.debug(dbgProcess, "\tinsufficient physical memory");
+                                return false;
                         }
+                        Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte)0);
+
+                        TranslationEntry entry = createPage(vpn).entry;
+                        entry.ppn = ppn;
+                        entry.valid = true;
                 }
 
                 return true;
         }
 
         /**
-         * Release any resources allocated by <tt>loadSections()</tt>.
+         * Release any resources allocated by <tt>loadSections()</tt>. Shared
+         * read-only pages are only freed once no other process maps them.
          */
         protected void unloadSections() {
-                for(TranslationEntry e : pageTable){
-                        if(e.used){
-                                e.used = false;
+                UserKernel kernel = (UserKernel)Kernel.kernel;
 
-                                // Put each page's physical page back into the free list.
-                                //System.out.println("freeing: " + e.ppn);
-                                ((UserKernel)Kernel.kernel).free(e.ppn);
+                for (int s=0; s<coff.getNumSections(); s++) {
+                        CoffSection section = coff.getSection(s);
+                        if(!section.isReadOnly()){
+                                continue;
+                        }
+
+                        for (int i=0; i<section.getLength(); i++) {
+                                VirtualPage page = getPage(section.getFirstVPN()+i);
+                                if(page != null && page.entry.valid && page.entry.readOnly){
+                                        page.entry.valid = false;
+                                        image.unmapSharedPage(s, i, page.entry.ppn);
+                                }
                         }
                 }
+
+                // put every other physical page back into the free list
+                for(int vpn=pageTable.next(0); vpn!=-1; vpn=pageTable.next(vpn+1)){
+                        TranslationEntry entry = getPage(vpn).entry;
+                        if(entry.valid){
+                                entry.valid = false;
+                                kernel.free(entry.ppn);
+                        }
+                        removePage(vpn);
+                }
+        }
+
+        /**
+         * Give back this process's reference to its executable image.
+         */
+        protected void releaseImage() {
+                if (image != null) {
+                        UserKernel.imageCache.release(image);
+                        image = null;
+                        coff = null;
+                }
         }
 
         /**
          * Initialize the processor's registers in preparation for running the
          * program loaded into this process. Set the PC register to point at the
          * start function, set the stack pointer register to point at the top of
-         * the stack, set the A0 and A1 registers to argc and argv, respectively,
-         * and initialize all other registers to 0.
+         * the stack, set the A0, A1 and A2 registers to argc, argv and envp,
+         * respectively, and initialize all other registers to 0.
          */
         public void initRegisters() {
                 Processor processor = Machine.processor();
 
+                // a forked process resumes where its parent called fork()
+                if(forkedRegisters != null){
+                        for (int i=0; i<Processor.numUserRegisters; i++)
+                                processor.writeRegister(i, forkedRegisters[i]);
+                        forkedRegisters = null;
+                        return;
+                }
+
                 // by default, everything's 0
-                for (int i=0; i<processor.numUserRegisters; i++)
+                for (int i=0; i<Processor.numUserRegisters; i++)
                         processor.writeRegister(i, 0);
 
                 // initialize PC and SP according
                 processor.writeRegister(Processor.regPC, initialPC);
                 processor.writeRegister(Processor.regSP, initialSP);
 
-                // initialize the first two argument registers to argc and argv
+                // initialize the first three argument registers to argc, argv
+                // and envp
                 processor.writeRegister(Processor.regA0, argc);
                 processor.writeRegister(Processor.regA1, argv);
+                processor.writeRegister(Processor.regA2, envp);
         }
 
         /**
@@ -451,96 +922,332 @@ public class UserProcess {
         }
 
         protected int handleExit(int a0) {
-                // Store our exit status in case the parent needs it for join()
-                if(parent != null){
-                        HashMap<Integer, Integer> statuses = parent.getChildExitStatuses();
-                        statuses.put(pid, a0);
+                // Asynchronous I/O may still be writing into our pages.
+                if(ioRing != null){
+                        ioRing.close();
+                        ioRing = null;
                 }
 
                 unloadSections();
 
-                if(coff != null){
-                        coff.close();
-                        coff = null;
+                releaseImage();
+
+                for(int fd=0; fd<maxDescriptors; fd++){
+                        closeDescriptor(fd);
+                }
+
+                pidLock.acquire();
+                runningProcesses--;
+
+                // Children still running no longer have a parent
+                for(UserProcess child : children.values()){
+                        child.parent = null;
+                }
+
+                // Queue our exit status for the parent's join() or waitpid()
+                if(parent != null){
+                        parent.childExitStatuses.put(pid, a0);
+                        parent.exitedChildren.add(pid);
+                        parent.childExited.wakeAll();
+                }
+                pidLock.release();
+
+                if(runningProcesses == 0){
+                        Kernel.kernel.terminate();
+                        Lib.assertNotReached("Terminate() failed to terminate the kernel.");
+                }else{
+                        UThread.finish();
+                }
+
+                return a0;
+        }
+
+        protected byte[] reverseBytes(byte[] b){
+                byte[] reversedBytes = new byte[b.length];
+
+                for(int i=0;i<b.length; i++){
+                        reversedBytes[i] = b[b.length - (i+1)];
+                }
+
+                return reversedBytes;
+        }
+
+        /**
+         * Executes a new process as a child of this process. Reads the process
+         * binary from a given file location and passes it a set of arguments.
+         * The arguments are copied straight into the child's memory, and may
+         * take up to <tt>maxArgumentPages</tt> pages; the child's environment is
+         * empty.
+         * @param a0 the memory address of the filename string.
+         * @param a1 the number of arguments to pass to the new program.
+         * @param a2 the memory address of an array of arguments given to exec.
+         * @return the pid of the child process spawned by exec, or -1 if an
+         * error occurred.
+         */
+        protected int handleExec(int a0, int a1, int a2){
+                ArgumentList args = new ArgumentList(maxArgumentPages*pageSize);
+                if(a1 < 0 || !args.add(this, a2, a1, false)){
+                        return -1;
+                }
+
+                return exec(a0, args);
+        }
+
+        /**
+         * Like <tt>handleExec()</tt>, but the arguments and the environment
+         * are each given by an array that ends with a null pointer.
+         * @param a0 the memory address of the filename string.
+         * @param a1 the memory address of the array of arguments.
+         * @param a2 the memory address of the array of environment strings,
+         * or 0 for an empty environment.
+         * @return the pid of the child process, or -1 if an error occurred.
+         */
+        protected int handleExecve(int a0, int a1, int a2){
+                ArgumentList args = new ArgumentList(maxArgumentPages*pageSize);
+                if(!args.add(this, a1, -1, false)){
+                        return -1;
+                }
+                if(a2 != 0 && !args.add(this, a2, -1, true)){
+                        return -1;
+                }
+
+                return exec(a0, args);
+        }
+
+        /**
+         * Run a program in a new child process.
+         * @param a0 the memory address of the filename string.
+         * @param args the arguments and environment to pass to the program.
+         * @return the pid of the child process, or -1 if an error occurred.
+         */
+        private int exec(int a0, ArgumentList args){
+                String filename = readVirtualMemoryString(a0, 256);
+                if(filename == null){
+                        return -1;
+                }
+
+                UserProcess p = newUserProcess();
+                if(p == null){
+                        return -1;
+                }
+                p.parent = this;
+
+                // The child's standard input and output are ours, so
+                // that they can be redirected, to a pipe for instance.
+                for(int fd=0; fd<=1; fd++){
+                        p.closeDescriptor(fd);
+                        SharedOpenFile file = getOpenFile(fd);
+                        if(file != null){
+                                p.installDescriptor(fd, file.reference());
+                        }
+                }
+
+                int newPid = p.getPid();
+                children.put(newPid, p);
+
+                boolean successful = p.execute(filename, args);
+                if(!successful){
+                        children.remove(newPid);
+                        // let go of our files, or a pipe might never see
+                        // end-of-file
+                        p.closeDescriptor(0);
+                        p.closeDescriptor(1);
+                        return -1;
+                }else{
+                        return newPid;
+                }
+        }
+
+        /**
+         * Creates a child process that is a copy of this one. The two processes
+         * share every physical page; pages that are writable become read-only
+         * copy-on-write pages in both, and are copied by whichever process
+         * writes to them first. The child shares this process's open files
+         * and resumes from the fork() call with a return value of 0.
+         * @return the pid of the child process, or -1 if an error occurred.
+         */
+        protected int handleFork(){
+                UserProcess child = newUserProcess();
+                if(child == null){
+                        return -1;
+                }
+                child.parent = this;
+
+                // No asynchronous write may land in a page once it is shared.
+                if(ioRing != null){
+                        ioRing.drain();
+                }
+
+                child.image = UserKernel.imageCache.reference(image);
+                child.coff = coff;
+                child.numPages = numPages;
+                child.heapStart = heapStart;
+                child.programBreak = programBreak;
+                child.initialPC = initialPC;
+                child.initialSP = initialSP;
+                child.argc = argc;
+                child.argv = argv;
+                child.envp = envp;
+
+                if(!copyAddressSpace(child)){
+                        // The child never ran; give back what it was given.
+                        child.unloadSections();
+                        child.releaseImage();
+                        child.closeDescriptor(0);
+                        child.closeDescriptor(1);
+                        return -1;
                 }
 
-                for(OpenFile file : descriptorTable){
-                        if(file != null){
-                                file.close();
+                for(int fd=0; fd<maxDescriptors; fd++){
+                        child.closeDescriptor(fd);
+                        if(descriptorTable[fd] != null){
+                                child.installDescriptor(fd, descriptorTable[fd].reference());
                         }
                 }
 
+                // The child returns 0 from the syscall that this process is
+                // still handling.
+                Processor processor = Machine.processor();
+                child.forkedRegisters = new int[Processor.numUserRegisters];
+                for(int i=0; i<Processor.numUserRegisters; i++){
+                        child.forkedRegisters[i] = processor.readRegister(i);
+                }
+                child.forkedRegisters[Processor.regV0] = 0;
+                child.forkedRegisters[Processor.regPC] =
+                        child.forkedRegisters[Processor.regNextPC];
+                child.forkedRegisters[Processor.regNextPC] += 4;
+
+                int newPid = child.getPid();
+                children.put(newPid, child);
+
+                child.processThread = new UThread(child);
+                child.processThread.setName(processThread == null ?
+                                "forked process" : processThread.getName());
+                child.processThread.fork();
+
                 pidLock.acquire();
-                runningProcesses--;
+                runningProcesses++;
                 pidLock.release();
 
-                if(runningProcesses == 0){
-                        Kernel.kernel.terminate();
-                        Lib.assertNotReached("Terminate() failed to terminate the kernel.");
-                }else{
-                        UThread.finish();
-                }
-
-                return a0;
+                return newPid;
         }
 
-        protected byte[] reverseBytes(byte[] b){
-                byte[] reversedBytes = new byte[b.length];
+        /**
+         * Share this process's resident pages with a child being forked. Every
+         * mapped physical page gains a reference, and writable pages become
+         * copy-on-write in both processes.
+         * @param child the new child process.
+         * @return <tt>true</tt> if the whole address space was copied. If not,
+         * the caller must unload the child's sections.
+         */
+        protected boolean copyAddressSpace(UserProcess child){
+                UserKernel kernel = (UserKernel)Kernel.kernel;
+                for(int vpn=pageTable.next(0); vpn!=-1; vpn=pageTable.next(vpn+1)){
+                        VirtualPage page = getPage(vpn);
+                        TranslationEntry entry = page.entry;
+                        if(!entry.valid){
+                                continue;
+                        }
 
-                for(int i=0;i<b.length; i++){
-                        reversedBytes[i] = b[b.length - (i+1)];
+                        kernel.referencePage(entry.ppn);
+                        if(!entry.readOnly){
+                                entry.readOnly = true;
+                                page.copyOnWrite = true;
+                        }
+
+                        VirtualPage childPage = child.createPage(vpn);
+                        childPage.entry.ppn = entry.ppn;
+                        childPage.entry.readOnly = entry.readOnly;
+                        childPage.entry.used = entry.used;
+                        childPage.entry.dirty = entry.dirty;
+                        childPage.entry.valid = true;
+                        childPage.copyOnWrite = page.copyOnWrite;
                 }
 
-                return reversedBytes;
+                return true;
         }
 
         /**
-         * Executes a new process as a child of this process. Reads the process
-         * binary from a given file location and passes it a set of arguments.
-         * @param a0 the memory address of the filename string.
-         * @param a1 the number of arguments to pass to the new program.
-         * @param a2 the memory address of an array of arguments given to exec.
-         * @return the pid of the child process spawned by exec, or -1 if an
-         * error occurred.
+         * Moves the end of this process's heap, which starts just above its
+         * arguments, by <i>a0</i> bytes. The heap may shrink back to empty, and
+         * may grow as far as memory allows.
+         * @param a0 the number of bytes to grow the heap by, or to shrink it by
+         * if negative.
+         * @return the previous end of the heap, or -1 if it could not be moved.
          */
-        protected int handleExec(int a0, int a1, int a2){
-                String filename = readVirtualMemoryString(a0, 256);
-                if(filename == null || a1 < 0){
+        protected int handleSbrk(int a0){
+                long newBreak = (programBreak & 0xFFFFFFFFL) + a0;
+                // keep -1 unambiguous by never giving out the last page
+                if(newBreak < heapStart ||
+                                newBreak > (long)(Processor.maxPages-1)*pageSize){
                         return -1;
-                }else{
-                        UserProcess p = newUserProcess();
-                        p.parent = this;
+                }
 
-                        if(p == null){
+                int newNumPages = (int)((newBreak + pageSize - 1) / pageSize);
+                if(newNumPages != numPages){
+                        // No asynchronous I/O may land in a page that is freed.
+                        if(newNumPages < numPages && ioRing != null){
+                                ioRing.drain();
+                        }
+                        if(!resizeHeap(newNumPages)){
                                 return -1;
                         }
+                }
 
-                        // Nachos integers have opposite endianness from Java ints.
-                        byte[] argPointerBytes = new byte[4];
-                        readVirtualMemory(a2, argPointerBytes);
-                        byte[] argPointerReverse = reverseBytes(argPointerBytes);
+                int oldBreak = programBreak;
+                programBreak = (int)newBreak;
+                return oldBreak;
+        }
 
-                        int argPointer = ByteBuffer.wrap(argPointerReverse).getInt();
-                        String[] args = new String[a1];
+        /**
+         * Grow or shrink the heap so that the program occupies
+         * <i>newNumPages</i> contiguous pages. Pages the heap grows into are
+         * allocated and zero-filled at once, and pages it shrinks out of are
+         * freed. Subclasses that page memory in on demand override this.
+         * @param newNumPages the new number of pages, at least the number
+         * below the heap.
+         * @return <tt>true</tt> if successful; on failure the heap is left as it
+         * was.
+         */
+        protected boolean resizeHeap(int newNumPages){
+                UserKernel kernel = (UserKernel)Kernel.kernel;
+                byte[] memory = Machine.processor().getMemory();
 
-                        for(int i=0; i<a1; i++){
-                                String arg = readVirtualMemoryString(argPointer, 512);
-                                if(arg == null){
-                                        return -1;
-                                }
-                                argPointer += arg.length()+1;
-                                args[i] = arg;
+                for(int vpn=numPages; vpn<newNumPages; vpn++){
+                        int ppn = kernel.getFreePage();
+                        if(ppn == -1){
+                                freeHeapPages(numPages, vpn);
+                                return false;
                         }
+                        Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte)0);
+
+                        TranslationEntry entry = createPage(vpn).entry;
+                        entry.ppn = ppn;
+                        entry.readOnly = false;
+                        entry.used = false;
+                        entry.dirty = false;
+                        entry.valid = true;
+                }
 
-                        int newPid = p.getPid();
-                        children.put(newPid, p);
+                freeHeapPages(newNumPages, numPages);
 
-                        boolean successful = p.execute(filename, args);
-                        if(!successful){
-                                return -1;
-                        }else{
-                                return newPid;
+                numPages = newNumPages;
+                return true;
+        }
+
+        /**
+         * Free the physical pages of a range of heap pages, and remove them
+         * from the page table.
+         */
+        private void freeHeapPages(int firstVPN, int endVPN){
+                UserKernel kernel = (UserKernel)Kernel.kernel;
+                for(int vpn=firstVPN; vpn<endVPN; vpn++){
+                        VirtualPage page = getPage(vpn);
+                        if(page != null && page.entry.valid){
+                                page.entry.valid = false;
+                                kernel.free(page.entry.ppn);
                         }
+                        removePage(vpn);
                 }
         }
 
@@ -562,13 +1269,14 @@ public class UserProcess {
                         return -1;
                 }
 
-                // Wait for the child thread to terminate.
-                child.processThread.join();
-
-                Integer status = childExitStatuses.get(a0);
-                if(status == null){
-                        status = 1;
+                // Wait for the child's exit to be queued.
+                pidLock.acquire();
+                while(!childExitStatuses.containsKey(a0)){
+                        childExited.sleep();
                 }
+                Integer status = childExitStatuses.remove(a0);
+                exitedChildren.remove((Integer)a0);
+                pidLock.release();
 
                 // Convert the status to a byte array and write it to the address
                 // given to join();
@@ -579,7 +1287,6 @@ public class UserProcess {
 
                 // Prevent anyone from joining to it again;
                 children.remove(a0);
-                childExitStatuses.remove(a0);
 
                 if(status >= 0){
                         return 1;
@@ -588,6 +1295,68 @@ public class UserProcess {
                 }
         }
 
+        /**
+         * Collects the exit statuses of children that have exited, in the
+         * order they exited. Unlike join(), this can wait for whichever child
+         * exits first, and can poll without waiting. Each child reported is
+         * disowned, exactly as join() would.
+         * @param a0 the pid of the child to wait for, or -1 for any child.
+         * @param a1 the memory address of an array of (pid, status) pairs to
+         * fill in.
+         * @param a2 the most pairs to fill in.
+         * @param a3 <tt>waitNoHang</tt> to return 0 rather than wait when no
+         * child has exited yet, or 0.
+         * @return the number of pairs filled in, or -1 if this process has
+         * no such child, the options or count are invalid, or the array
+         * could not be written.
+         */
+        protected int handleWaitpid(int a0, int a1, int a2, int a3){
+                if(a2 < 1 || (a3 & ~waitNoHang) != 0){
+                        return -1;
+                }
+                if(a0 == -1 ? children.isEmpty() : !children.containsKey(a0)){
+                        return -1;
+                }
+
+                // Only we take entries off the queue, so the ones found here
+                // are still there once the results are written.
+                ArrayList<Integer> found = new ArrayList<Integer>();
+                pidLock.acquire();
+                while(true){
+                        for(Integer childPid : exitedChildren){
+                                if(found.size() < a2 && (a0 == -1 || childPid == a0)){
+                                        found.add(childPid);
+                                }
+                        }
+                        if(!found.isEmpty() || (a3 & waitNoHang) != 0){
+                                break;
+                        }
+                        childExited.sleep();
+                }
+
+                byte[] results = new byte[found.size()*8];
+                for(int i=0; i<found.size(); i++){
+                        Lib.bytesFromInt(results, i*8, found.get(i));
+                        Lib.bytesFromInt(results, i*8+4,
+                                        childExitStatuses.get(found.get(i)));
+                }
+                pidLock.release();
+
+                if(writeVirtualMemory(a1, results) != results.length){
+                        return -1;
+                }
+
+                pidLock.acquire();
+                for(Integer childPid : found){
+                        exitedChildren.remove(childPid);
+                        childExitStatuses.remove(childPid);
+                        children.remove(childPid);
+                }
+                pidLock.release();
+
+                return found.size();
+        }
+
         /**
          * Open a new file, creating it if it does not exist.
          * @param a0 the virtual memory address of the filename string.
@@ -598,13 +1367,12 @@ public class UserProcess {
                 if(filename == null){
                         return -1;
                 }else{
-                        OpenFile createdFile = UserKernel.fileSystem.open(filename, true);
+                        SharedOpenFile createdFile = UserKernel.openFileTable.open(filename, true);
                         if(createdFile == null){
                                 return -1;
                         }
 
-                        descriptorTable.add(createdFile);
-                        return descriptorTable.indexOf(createdFile);
+                        return installDescriptor(createdFile);
                 }
         }
 
@@ -621,19 +1389,19 @@ public class UserProcess {
                 if(filename == null){
                         return -1;
                 }else{
-                        OpenFile openedFile = UserKernel.fileSystem.open(filename, false);
+                        SharedOpenFile openedFile = UserKernel.openFileTable.open(filename, false);
                         if(openedFile == null){
                                 return -1;
                         }
 
-                        descriptorTable.add(openedFile);
-			return descriptorTable.indexOf(openedFile);
+                        return installDescriptor(openedFile);
                 }
         }
 
         /**
          * Reads data from a file descriptor into a buffer until a given
-         * amount of bytes have been read.
+         * amount of bytes have been read. Large requests are streamed in
+         * chunks, so the kernel never holds more than one chunk at a time.
          * @param a0 the file descriptor to read from.
          * @param a1 a memory address of a buffer to write the data to.
          * @param a2 the maximum number of bytes to read from the descriptor.
@@ -641,38 +1409,17 @@ public class UserProcess {
          * occurred.
          */
         protected int handleRead(int a0, int a1, int a2){
-                if(a0 >= 0 && a0 < descriptorTable.size() &&
-                                descriptorTable.get(a0) != null && a2 > 0){
-                        OpenFile file = descriptorTable.get(a0);
-
-                        byte[] data = new byte[a2];
-                        int bytesRead = file.read(data, 0, a2);
-
-                        if(bytesRead < 0){
-                                return -1;
-                        }else if(bytesRead == 0){
-                                return 0;
-                        }
-
-                        byte[] dataToWrite = new byte[bytesRead];
-                        System.arraycopy(data, 0, dataToWrite, 0, bytesRead);
-
-                        int bytesWritten = writeVirtualMemory(a1, dataToWrite);
-
-                        if(bytesWritten < 0){
-                                return -1;
-                        }
-
-                        return bytesRead;
+                OpenFile file = getOpenFile(a0);
+                if(file != null && a2 >= 0){
+                        return readFileToVirtualMemory(file, a1, a2);
                 }else{
                         return -1;
                 }
         }
 
         /**
-         * Writes a buffer of a given length to a file descriptor. The argument
-         * a1 must point to a string of < 256 bytes in length, or it will
-         * be truncated to 256 bytes.
+         * Writes a buffer of a given length to a file descriptor. The buffer
+         * is written as raw bytes, and large requests are streamed in chunks.
          * @param a0 the file descriptor to write to.
          * @param a1 a memory address of a buffer of data to write.
          * @param a2 the length of the data to write.
@@ -680,17 +1427,9 @@ public class UserProcess {
          * occurred.
          */
         protected int handleWrite(int a0, int a1, int a2){
-                if(a0 >= 0 && a0 < descriptorTable.size() &&
-                                descriptorTable.get(a0) != null && a2 > 0){
-                        OpenFile file = descriptorTable.get(a0);
-                        String data = readVirtualMemoryString(a1, 256);
-
-                        if(data == null){
-                                return -1;
-                        }else{
-                                int bytesWritten = file.write(data.getBytes(), 0, a2);
-                                return bytesWritten;
-                        }
+                OpenFile file = getOpenFile(a0);
+                if(file != null && a2 >= 0){
+                        return writeVirtualMemoryToFile(file, a1, a2);
                 }else{
                         return -1;
                 }
@@ -703,30 +1442,91 @@ public class UserProcess {
          * @return 0 on success, -1 on failure.
          */
         protected int handleClose(int a0){
-                if(a0 < descriptorTable.size() && a0 >= 0 &&
-                                descriptorTable.get(a0) != null){
-                        descriptorTable.get(a0).close();
-		        descriptorTable.remove(a0);
+                if(closeDescriptor(a0)){
                         return 0;
                 }
 
                 return -1;
         }
 
+        /**
+         * Creates a pipe, and opens its read end and its write end at the two
+         * lowest-numbered free descriptors.
+         * @param a0 a memory address to write the two descriptors to, read
+         * end first.
+         * @return 0 on success, -1 on failure.
+         */
+        protected int handlePipe(int a0){
+                if(Long.bitCount(freeDescriptors) < 2){
+                        return -1;
+                }
+
+                Pipe pipe = new Pipe(UserKernel.pipeCapacity);
+                int readFd = installDescriptor(new SharedOpenFile(pipe.getReadEnd()));
+                int writeFd = installDescriptor(new SharedOpenFile(pipe.getWriteEnd()));
+
+                byte[] fds = new byte[8];
+                Lib.bytesFromInt(fds, 0, readFd);
+                Lib.bytesFromInt(fds, 4, writeFd);
+                if(writeVirtualMemory(a0, fds) < fds.length){
+                        closeDescriptor(readFd);
+                        closeDescriptor(writeFd);
+                        return -1;
+                }
+
+                return 0;
+        }
+
+        /**
+         * Duplicates a file descriptor onto the lowest-numbered free
+         * descriptor. Both descriptors refer to the same open file and share
+         * its position.
+         * @param a0 the file descriptor to duplicate.
+         * @return the new file descriptor, or -1 if an error occurred.
+         */
+        protected int handleDup(int a0){
+                SharedOpenFile file = getOpenFile(a0);
+                if(file == null || freeDescriptors == 0){
+                        return -1;
+                }
+
+                return installDescriptor(Long.numberOfTrailingZeros(freeDescriptors),
+                                file.reference());
+        }
+
+        /**
+         * Duplicates a file descriptor onto a chosen descriptor, closing
+         * whatever that descriptor referred to first.
+         * @param a0 the file descriptor to duplicate.
+         * @param a1 the file descriptor to duplicate it onto.
+         * @return the new file descriptor, or -1 if an error occurred.
+         */
+        protected int handleDup2(int a0, int a1){
+                SharedOpenFile file = getOpenFile(a0);
+                if(file == null || a1 < 0 || a1 >= maxDescriptors){
+                        return -1;
+                }
+
+                if(a0 == a1){
+                        return a1;
+                }
+
+                closeDescriptor(a1);
+                return installDescriptor(a1, file.reference());
+        }
+
         protected int handleUnlink(int a0){
                 String filename = readVirtualMemoryString(a0, 256);
                 if(filename == null){
                         return -1;
                 }else{
-		  for (UserProcess process : children)
-		  { 
-		    for(OpenFile file : process.descriptorTable)
-		    {
-		      if (filename==file.getName()) return -1;
-		    }
-		  }
-		      
-		  if(!UserKernel.fileSystem.remove(filename)){
+                        // A cached executable is kept open by its image; let
+                        // it go, so that only running processes defer the
+                        // removal.
+                        UserKernel.imageCache.discard(filename);
+
+                        // Files that are still open are deleted on their last close.
+                        if(!UserKernel.openFileTable.unlink(filename)){
                                 return -1;
                         }else{
                                 return 0;
@@ -734,6 +1534,236 @@ public class UserProcess {
                 }
         }
 
+        /**
+         * Reads from a file descriptor into several buffers, filling each one
+         * completely before moving on to the next. Stops early on a short read.
+         * @param a0 the file descriptor to read from.
+         * @param a1 a memory address of an array of iovec entries, each a
+         * buffer address followed by a buffer length.
+         * @param a2 the number of iovec entries.
+         * @return the total number of bytes read, or -1 if an error occurred.
+         */
+        protected int handleReadv(int a0, int a1, int a2){
+                return transferVector(a0, a1, a2, false);
+        }
+
+        /**
+         * Writes several buffers to a file descriptor, in order, as if they
+         * were one contiguous buffer. Stops early on a short write.
+         * @param a0 the file descriptor to write to.
+         * @param a1 a memory address of an array of iovec entries, each a
+         * buffer address followed by a buffer length.
+         * @param a2 the number of iovec entries.
+         * @return the total number of bytes written, or -1 if an error occurred.
+         */
+        protected int handleWritev(int a0, int a1, int a2){
+                return transferVector(a0, a1, a2, true);
+        }
+
+        private int transferVector(int fd, int iovAddr, int iovCount, boolean toFile){
+                OpenFile file = getOpenFile(fd);
+                if(file == null || iovCount < 0 || iovCount > maxIovecCount){
+                        return -1;
+                }
+
+                int total = 0;
+
+                for(int i=0; i<iovCount; i++){
+                        // an error after some bytes have moved ends the
+                        // transfer early rather than losing track of them
+                        if(readVirtualMemory(iovAddr + i*iovecSize, iovec) < iovecSize){
+                                return (total == 0) ? -1 : total;
+                        }
+
+                        int base = Lib.bytesToInt(iovec, 0);
+                        int length = Lib.bytesToInt(iovec, 4);
+                        if(length < 0){
+                                return (total == 0) ? -1 : total;
+                        }
+
+                        int amount = toFile ? writeVirtualMemoryToFile(file, base, length)
+                                        : readFileToVirtualMemory(file, base, length);
+                        if(amount < 0){
+                                return (total == 0) ? -1 : total;
+                        }
+
+                        total += amount;
+                        if(amount < length){
+                                break;
+                        }
+                }
+
+                return total;
+        }
+
+        /**
+         * Executes an array of syscall descriptors in a single trap. Each
+         * descriptor holds a syscall number, four arguments and a result slot;
+         * the result of each syscall is written back into its descriptor.
+         * Descriptors are executed in order. A batch may not contain another
+         * batch, nor a call that does not return to the rest of the batch:
+         * fork(), exit(), halt() or execve(). The result of such an entry is
+         * -1, and the batch carries on with the next one.
+         * @param a0 a memory address of the first syscall descriptor.
+         * @param a1 the number of descriptors.
+         * @return the number of descriptors executed, or -1 if the array could
+         * not be accessed at all.
+         */
+        protected int handleSyscallBatch(int a0, int a1){
+                if(a1 < 0 || a1 > maxBatchSize){
+                        return -1;
+                }
+
+                for(int i=0; i<a1; i++){
+                        int descriptorAddr = a0 + i*syscallDescriptorSize;
+                        if(readVirtualMemory(descriptorAddr, syscallDescriptor)
+                                        < syscallDescriptorSize){
+                                return (i == 0) ? -1 : i;
+                        }
+
+                        int number = Lib.bytesToInt(syscallDescriptor, 0);
+                        int arg0 = Lib.bytesToInt(syscallDescriptor, 4);
+                        int arg1 = Lib.bytesToInt(syscallDescriptor, 8);
+                        int arg2 = Lib.bytesToInt(syscallDescriptor, 12);
+                        int arg3 = Lib.bytesToInt(syscallDescriptor, 16);
+
+                        int result = isBatchable(number) ?
+                                handleSyscall(number, arg0, arg1, arg2, arg3) : -1;
+
+                        Lib.bytesFromInt(syscallDescriptor, 20, result);
+                        if(writeVirtualMemory(descriptorAddr+20, syscallDescriptor, 20, 4) < 4){
+                                return (i == 0) ? -1 : i;
+                        }
+                }
+
+                return a1;
+        }
+
+        /**
+         * Tell whether a syscall may be run from a batch. A forked child
+         * would resume after the whole batch, with none of the later entries
+         * run for it; exit() and halt() would never return to finish the
+         * batch, and execve() is left out as it is on UNIX, where it replaces
+         * the caller.
+         * @param number the syscall number.
+         * @return <tt>true</tt> if the syscall may be part of a batch.
+         */
+        protected boolean isBatchable(int number){
+                switch(number){
+                case syscallBatch:
+                case syscallFork:
+                case syscallExit:
+                case syscallHalt:
+                case syscallExecve:
+                        return false;
+                default:
+                        return true;
+                }
+        }
+
+        /**
+         * Sets up the asynchronous I/O rings for this process. A process may
+         * have at most one pair of rings.
+         * @param a0 the number of slots in each ring.
+         * @param a1 the memory address of the ring area, which must be at least
+         * <tt>AsyncIORing.ringSize(a0)</tt> bytes of writable memory.
+         * @return 0 on success, or -1 if an error occurred.
+         */
+        protected int handleIoSetup(int a0, int a1){
+                if(ioRing != null || a0 <= 0 || a0 > AsyncIORing.maxEntries){
+                        return -1;
+                }
+
+                AsyncIORing ring = new AsyncIORing(this, a1, a0);
+                if(!ring.initialize()){
+                        ring.close();
+                        return -1;
+                }
+
+                ioRing = ring;
+                return 0;
+        }
+
+        /**
+         * Submits queued asynchronous I/O requests to the kernel workers, and
+         * optionally waits for completions.
+         * @param a0 the maximum number of submissions to consume.
+         * @param a1 the number of unconsumed completions to wait for before
+         * returning.
+         * @return the number of submissions consumed, or -1 if an error occurred.
+         */
+        protected int handleIoEnter(int a0, int a1){
+                if(ioRing == null || a0 < 0){
+                        return -1;
+                }
+
+                int submitted = ioRing.submit(a0);
+                if(submitted >= 0 && a1 > 0){
+                        ioRing.waitForCompletions(a1);
+                }
+
+                return submitted;
+        }
+
+        /**
+         * Return the file referred to by a file descriptor.
+         * @param fd the file descriptor.
+         * @return the open file, or <tt>null</tt> if the descriptor is not open.
+         */
+        protected SharedOpenFile getOpenFile(int fd){
+                if(fd < 0 || fd >= maxDescriptors){
+                        return null;
+                }
+
+                return descriptorTable[fd];
+        }
+
+        /**
+         * Install a newly opened file at the lowest-numbered free descriptor.
+         * The file is closed if no descriptor is free.
+         * @param file the newly opened file.
+         * @return the new file descriptor, or -1 if the table is full.
+         */
+        protected int installDescriptor(SharedOpenFile file){
+                if(freeDescriptors == 0){
+                        file.close();
+                        return -1;
+                }
+
+                return installDescriptor(Long.numberOfTrailingZeros(freeDescriptors), file);
+        }
+
+        /**
+         * Install a reference to an open file at a specific, free descriptor.
+         * @param fd the free file descriptor.
+         * @param file the reference to install.
+         * @return <i>fd</i>.
+         */
+        protected int installDescriptor(int fd, SharedOpenFile file){
+                Lib.assertTrue(descriptorTable[fd] == null);
+
+                descriptorTable[fd] = file;
+                freeDescriptors &= ~(1L << fd);
+                return fd;
+        }
+
+        /**
+         * Close a file descriptor, releasing its slot for reuse.
+         * @param fd the file descriptor.
+         * @return <tt>true</tt> if the descriptor was open.
+         */
+        protected boolean closeDescriptor(int fd){
+                SharedOpenFile file = getOpenFile(fd);
+                if(file == null){
+                        return false;
+                }
+
+                descriptorTable[fd] = null;
+                freeDescriptors |= 1L << fd;
+                file.close();
+                return true;
+        }
+
         private static final int
         syscallHalt = 0,
         syscallExit = 1,
@@ -744,7 +1774,19 @@ public class UserProcess {
         syscallRead = 6,
         syscallWrite = 7,
         syscallClose = 8,
-        syscallUnlink = 9;
+        syscallUnlink = 9,
+        syscallReadv = 13,
+        syscallWritev = 14,
+        syscallBatch = 15,
+        syscallIoSetup = 16,
+        syscallIoEnter = 17,
+        syscallDup = 18,
+        syscallDup2 = 19,
+        syscallFork = 20,
+        syscallPipe = 25,
+        syscallSbrk = 26,
+        syscallExecve = 27,
+        syscallWaitpid = 28;
 
         /**
          * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -765,6 +1807,22 @@ public class UserProcess {
          *                                                              </tt></td></tr>
          * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
          * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+         * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+         *                                                              </tt></td></tr>
+         * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+         *                                                              </tt></td></tr>
+         * <tr><td>15</td><td><tt>int  syscallv(struct syscall_desc *descs, int count);
+         *                                                              </tt></td></tr>
+         * <tr><td>16</td><td><tt>int  io_setup(int entries, void *ring);</tt></td></tr>
+         * <tr><td>17</td><td><tt>int  io_enter(int toSubmit, int minComplete);
+         *                                                              </tt></td></tr>
+         * <tr><td>18</td><td><tt>int  dup(int fd);</tt></td></tr>
+         * <tr><td>19</td><td><tt>int  dup2(int fd, int newfd);</tt></td></tr>
+         * <tr><td>20</td><td><tt>int  fork();</tt></td></tr>
+         * <tr><td>25</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+         * <tr><td>26</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+         * <tr><td>27</td><td><tt>int  execve(char *name, char **argv, char **envp);</tt></td></tr>
+         * <tr><td>28</td><td><tt>int  waitpid(int pid, struct childexit *exits, int count, int options);</tt></td></tr>
          * </table>
          *
          * @param       syscall the syscall number.
@@ -796,6 +1854,30 @@ public class UserProcess {
                         return handleClose(a0);
                 case syscallUnlink:
                         return handleUnlink(a0);
+                case syscallReadv:
+                        return handleReadv(a0, a1, a2);
+                case syscallWritev:
+                        return handleWritev(a0, a1, a2);
+                case syscallBatch:
+                        return handleSyscallBatch(a0, a1);
+                case syscallIoSetup:
+                        return handleIoSetup(a0, a1);
+                case syscallIoEnter:
+                        return handleIoEnter(a0, a1);
+                case syscallDup:
+                        return handleDup(a0);
+                case syscallDup2:
+                        return handleDup2(a0, a1);
+                case syscallFork:
+                        return handleFork();
+                case syscallPipe:
+                        return handlePipe(a0);
+                case syscallSbrk:
+                        return handleSbrk(a0);
+                case syscallExecve:
+                        return handleExecve(a0, a1, a2);
+                case syscallWaitpid:
+                        return handleWaitpid(a0, a1, a2, a3);
 
                 default:
                         Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -827,14 +1909,33 @@ public class UserProcess {
                         processor.advancePC();
                         break;
 
+                case Processor.exceptionReadOnly:
+                        // a write to a copy-on-write page; retry the instruction
+                        // once this process has its own copy
+                        int vaddr = processor.readRegister(Processor.regBadVAddr);
+                        if(!breakCopyOnWrite(Processor.pageFromAddress(vaddr))){
+                                handleUnexpectedException(cause);
+                        }
+                        break;
+
                 default:
-                        Lib.debug(dbgProcess, "Unexpected exception: " +
-                                        Processor.exceptionNames[cause]);
+                        handleUnexpectedException(cause);
+                        break;
+                }
+        }
+
+        /**
+         * Kill this process after an exception it cannot recover from.
+         *
+         * @param       cause   the user exception that occurred.
+         */
+        private void handleUnexpectedException(int cause) {
+                Lib.debug(dbgProcess, "Unexpected exception: " +
+                                Processor.exceptionNames[cause]);
                 // Kill the process and free its resources.
                 // handleExit() does this for us already.
                 handleExit(-1);
                 Lib.assertNotReached("Unexpected exception");
-                }
         }
 
         public int getPid() {
@@ -843,24 +1944,91 @@ public class UserProcess {
 
         /** The program being run by this process. */
         protected Coff coff;
+        /** The cached image <tt>coff</tt> belongs to. */
+        protected ProcessImage image;
 
         private int pid;
 
-        /** This process's page table. */
-        protected TranslationEntry[] pageTable;
-        /** The number of contiguous pages occupied by the program. */
+        /**
+         * The state of a virtual page: its translation, and whether it is
+         * shared copy-on-write. Subclasses that keep more state per page extend
+         * this class and override <tt>newPage()</tt>.
+         */
+        protected static class VirtualPage {
+                /**
+                 * Allocate the state of a page that is not resident.
+                 *
+                 * @param       vpn     the virtual page number.
+                 */
+                protected VirtualPage(int vpn) {
+                        entry = new TranslationEntry(vpn, 0, false, false, false, false);
+                }
+
+                /** The translation of the page. */
+                public final TranslationEntry entry;
+                /** Whether the page is shared with another process until one of them writes. */
+                public boolean copyOnWrite = false;
+        }
+
+        /** This process's page table. Pages are only added as they are used. */
+        protected PageTable<VirtualPage> pageTable = new PageTable<VirtualPage>();
+        /** The page table a processor without a TLB translates through. */
+        private TranslationEntry[] linearPageTable = new TranslationEntry[0];
+        /**
+         * The number of contiguous pages occupied by the program, from its
+         * first section to the end of its heap.
+         */
         protected int numPages;
+        /** The first address of the heap, just above the arguments. */
+        private int heapStart;
+        /** The end of the heap, as moved by <tt>sbrk()</tt>. */
+        private int programBreak;
 
         /** The number of pages in the program's stack. */
         protected final int stackPages = 8;
 
         private int initialPC, initialSP;
-        private int argc, argv;
+        private int argc, argv, envp;
+
+        /** The most pages the arguments and environment of exec() may take up. */
+        protected static final int maxArgumentPages = 32;
+
+        /** The registers a forked process starts with, until it first runs. */
+        private int[] forkedRegisters;
 
         private static final int pageSize = Processor.pageSize;
         private static final char dbgProcess = 'a';
 
-        protected ArrayList<OpenFile> descriptorTable = new ArrayList<OpenFile>(16);
+        /** The largest chunk moved by a single file operation in read() or write(). */
+        protected static final int transferBufferSize = 4*pageSize;
+        /** Staging buffer for chunks that are not physically contiguous. */
+        private byte[] transferBuffer;
+
+        /** The size of an iovec entry: a buffer address and a length. */
+        private static final int iovecSize = 8;
+        /** The most iovec entries accepted by one readv() or writev(). */
+        private static final int maxIovecCount = 1024;
+        /** The size of a syscall descriptor: number, four arguments, result. */
+        private static final int syscallDescriptorSize = 24;
+        /** The most syscall descriptors accepted by one batch. */
+        private static final int maxBatchSize = 256;
+
+        private byte[] iovec = new byte[iovecSize];
+        private byte[] syscallDescriptor = new byte[syscallDescriptorSize];
+
+        /** This process's asynchronous I/O rings, if it has set them up. */
+        protected AsyncIORing ioRing = null;
+
+        /** Reused for every walk over this process's virtual memory. */
+        protected PageRunIterator memoryRun = new PageRunIterator(this);
+
+        /** The number of file descriptors a process may have open at once. */
+        protected static final int maxDescriptors = 64;
+
+        /** Open files, indexed by file descriptor. */
+        protected SharedOpenFile[] descriptorTable = new SharedOpenFile[maxDescriptors];
+        /** Bit <i>fd</i> is set when descriptor <i>fd</i> is free. */
+        protected long freeDescriptors = -1L;
 
         public static int currentPID = 0;
         public static int runningProcesses = 0;
@@ -868,6 +2036,14 @@ public class UserProcess {
 
         private HashMap<Integer, UserProcess> children;
         protected HashMap<Integer, Integer> childExitStatuses;
+        /** The pids of children that have exited and not been joined, in
+         * the order they exited. Guarded by <tt>pidLock</tt>. */
+        private LinkedList<Integer> exitedChildren = new LinkedList<Integer>();
+        /** Signalled whenever a child's exit is queued. */
+        private Condition2 childExited = new Condition2(pidLock);
+
+        /** The waitpid() option to return at once if no child has exited. */
+        protected static final int waitNoHang = 1;
                
 
         protected UThread processThread;
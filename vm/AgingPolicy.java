@@ -0,0 +1,84 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each physical
+ * page has an 8-bit age. On every timer interrupt, each age is shifted right
+ * and the page's used bit is shifted in at the top and then cleared, so a
+ * page's age records in which of the last eight timer intervals it was used.
+ * The page with the lowest age is evicted.
+ *
+ * <p>
+ * A page whose used bit has been set since the last timer interrupt counts as
+ * younger than any page whose bit is clear. Ties are broken by a hand that
+ * moves on after each eviction, so that equally old pages are evicted in
+ * turn.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new aging policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(InvertedPageTable invertedPageTable) {
+	this.invertedPageTable = invertedPageTable;
+	ages = new int[invertedPageTable.getNumPhysPages()];
+    }
+
+    public void pageLoaded(int ppn) {
+	// the page is loaded because it is about to be used
+	ages[ppn] = ageMask;
+    }
+
+    public void timerInterrupt() {
+	// VMKernel has already copied the TLB's used bits to the page table
+	for (int ppn=0; ppn<ages.length; ppn++) {
+	    TranslationEntry entry = invertedPageTable.getEntry(ppn);
+	    if (entry == null)
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (entry.used) {
+		ages[ppn] |= ageMask;
+		entry.used = false;
+	    }
+	}
+    }
+
+    public int selectVictim() {
+	int numPhysPages = ages.length;
+
+	int victim = -1;
+	int victimAge = 0;
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = (hand+i) % numPhysPages;
+	    if (!invertedPageTable.isEvictable(ppn))
+		continue;
+
+	    int age = ages[ppn];
+	    if (invertedPageTable.getEntry(ppn).used)
+		age |= ageMask << 1;
+
+	    if (victim == -1 || age < victimAge) {
+		victim = ppn;
+		victimAge = age;
+	    }
+	}
+
+	if (victim != -1)
+	    hand = (victim+1) % numPhysPages;
+
+	return victim;
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private int[] ages;
+    private int hand = 0;
+
+    private static final int ageMask = 0x80;
+}
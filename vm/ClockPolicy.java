@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock (second-chance) algorithm. A hand sweeps the physical pages in
+ * order, clearing used bits, and stops at the first evictable page that has
+ * not been used since the hand last passed it.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(InvertedPageTable invertedPageTable) {
+	this.invertedPageTable = invertedPageTable;
+    }
+
+    public void pageLoaded(int ppn) {
+    }
+
+    public void timerInterrupt() {
+    }
+
+    public int selectVictim() {
+	int numPhysPages = invertedPageTable.getNumPhysPages();
+
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!invertedPageTable.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = invertedPageTable.getEntry(ppn);
+	    if (entry.used) {
+		entry.used = false;
+		continue;
+	    }
+
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private int hand = 0;
+}
@@ -0,0 +1,154 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of kernel memory holding compressed copies of evicted pages,
+ * used as a swap tier in front of the swap file. Storing a page here costs a
+ * little kernel memory and no disk I/O, so under memory pressure a working
+ * set that is slightly too big for physical memory can circulate through the
+ * pool instead of the much slower swap file.
+ *
+ * <p>
+ * A page is only accepted if it compresses to less than a page and the pool
+ * has room for it; otherwise it goes to the swap file. Pages of zeros are not
+ * stored at all; <tt>isZeroPage()</tt> lets the caller record them as a flag.
+ *
+ * <p>
+ * A pool does no locking of its own; <tt>VMKernel</tt> serializes all paging.
+ */
+public class CompressedPool {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param	capacity	the most bytes of compressed data the pool may
+     *				hold.
+     */
+    public CompressedPool(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Test whether a physical page holds only zeros.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if every byte of the page is zero.
+     */
+    public static boolean isZeroPage(int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++) {
+	    if (memory[i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Compress a physical page into the pool.
+     *
+     * @param	ppn	the physical page.
+     * @return	the compressed page, or <tt>null</tt> if the page does not
+     *		compress or the pool is full.
+     */
+    public byte[] compress(int ppn) {
+	deflater.reset();
+	deflater.setInput(Machine.processor().getMemory(), ppn*pageSize,
+			  pageSize);
+	deflater.finish();
+
+	int length = deflater.deflate(buffer);
+	if (!deflater.finished() || length >= pageSize)
+	    return null;
+
+	byte[] data = allocate(length);
+	if (data != null)
+	    System.arraycopy(buffer, 0, data, 0, length);
+
+	return data;
+    }
+
+    /**
+     * Decompress a page from the pool into a physical page. The page stays
+     * in the pool until it is freed.
+     *
+     * @param	data	the compressed page.
+     * @param	ppn	the physical page.
+     */
+    public void decompress(byte[] data, int ppn) {
+	decompress(data, Machine.processor().getMemory(), ppn*pageSize);
+    }
+
+    /**
+     * Decompress a page from the pool into a buffer that is only valid until
+     * the next call to this pool.
+     *
+     * @param	data	the compressed page.
+     * @return	a buffer holding the page.
+     */
+    public byte[] decompress(byte[] data) {
+	decompress(data, buffer, 0);
+	return buffer;
+    }
+
+    /**
+     * Copy a page within the pool.
+     *
+     * @param	data	the compressed page.
+     * @return	the copy, or <tt>null</tt> if the pool is full.
+     */
+    public byte[] copy(byte[] data) {
+	byte[] copy = allocate(data.length);
+	if (copy != null)
+	    System.arraycopy(data, 0, copy, 0, data.length);
+
+	return copy;
+    }
+
+    /**
+     * Return a page's space to the pool.
+     *
+     * @param	data	the compressed page.
+     */
+    public void free(byte[] data) {
+	Lib.assertTrue(size >= data.length);
+	size -= data.length;
+    }
+
+    private byte[] allocate(int length) {
+	if (size + length > capacity)
+	    return null;
+
+	size += length;
+	return new byte[length];
+    }
+
+    private void decompress(byte[] data, byte[] page, int offset) {
+	inflater.reset();
+	inflater.setInput(data);
+
+	try {
+	    Lib.assertTrue(inflater.inflate(page, offset, pageSize) == pageSize);
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("corrupt compressed page");
+	}
+    }
+
+    private int capacity;
+    private int size = 0;
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    /** Big enough for a page that does not compress. */
+    private byte[] buffer = new byte[2*pageSize];
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Replaces TLB entries in the order they were loaded.
+ */
+public class FIFOTLBPolicy implements TLBReplacementPolicy {
+    /**
+     * Allocate a new FIFO TLB policy.
+     */
+    public FIFOTLBPolicy() {
+    }
+
+    public void initialize(TLBController tlb) {
+	loadTimes = new long[tlb.getSize()];
+    }
+
+    public void entryLoaded(int number) {
+	loadTimes[number] = numLoads++;
+    }
+
+    public int selectVictim() {
+	int victim = 0;
+	for (int i=1; i<loadTimes.length; i++) {
+	    if (loadTimes[i] < loadTimes[victim])
+		victim = i;
+	}
+
+	return victim;
+    }
+
+    private long[] loadTimes;
+    private long numLoads = 0;
+}
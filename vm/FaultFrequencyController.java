@@ -0,0 +1,203 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Sizes the resident set of each process by its page-fault frequency, and
+ * suspends processes when together they need more physical pages than there
+ * are.
+ *
+ * <p>
+ * Each process has an <tt>Allocation</tt>: the number of physical pages it is
+ * judged to need. On every page fault the controller looks at the time since
+ * the process's previous fault. If it is shorter than
+ * <tt>FaultFrequencyController.lowerInterval</tt> ticks, the process is
+ * short of pages, and its allocation grows to one more than it has resident.
+ * If it is longer than <tt>FaultFrequencyController.upperInterval</tt> ticks,
+ * the process has more pages than it is using: every page it has not used
+ * since that fault is evicted, and its allocation shrinks to what is left.
+ * Replacement is otherwise still global.
+ *
+ * <p>
+ * When a process faults too often, no page is free, and the allocations of
+ * the running processes add up to more than physical memory, the system is
+ * thrashing. The faulting process is then suspended: all of its pages are
+ * evicted, and it waits, checking every
+ * <tt>FaultFrequencyController.resumeInterval</tt> ticks, until its allocation
+ * fits beside those of the running processes, or until no other process has
+ * faulted while it waited. A resumed process is not suspended again until it
+ * has had as many faults as its allocation, to load its pages back in, and
+ * the last process still running is never suspended.
+ */
+public class FaultFrequencyController {
+    /**
+     * Allocate a new controller.
+     *
+     * @param	pagingLock	the lock that serializes paging.
+     */
+    public FaultFrequencyController(Lock pagingLock) {
+	this.pagingLock = pagingLock;
+
+	numPhysPages = Machine.processor().getNumPhysPages();
+
+	lowerInterval =
+	    Config.getInteger("FaultFrequencyController.lowerInterval", 5000);
+	upperInterval =
+	    Config.getInteger("FaultFrequencyController.upperInterval", 50000);
+	resumeInterval =
+	    Config.getInteger("FaultFrequencyController.resumeInterval", 20000);
+	Lib.assertTrue(lowerInterval <= upperInterval);
+    }
+
+    /**
+     * Note a page fault taken by a process on its own thread, and adjust its
+     * allocation. The caller must hold the paging lock; if the process is
+     * suspended, the lock is released until it is resumed.
+     *
+     * @param	process	the faulting process.
+     * @return	<tt>true</tt> if the process was suspended.
+     */
+    public boolean pageFault(VMProcess process) {
+	Allocation allocation = process.getAllocation();
+	long time = Machine.timer().getTime();
+
+	if (!allocation.running) {
+	    allocation.running = true;
+	    allocation.lastFaultTime = time;
+	    numRunning++;
+	    setAllocation(allocation, 1);
+	}
+
+	long interval = time - allocation.lastFaultTime;
+	allocation.lastFaultTime = time;
+
+	int numResident = process.getNumResidentPages();
+
+	if (interval > upperInterval) {
+	    int numTrimmed = process.trimPages(false);
+	    VMKernel.numTrimmedPages += numTrimmed;
+	    setAllocation(allocation, numResident - numTrimmed + 1);
+	    return false;
+	}
+
+	if (interval >= lowerInterval)
+	    return false;
+
+	setAllocation(allocation, Math.min(Math.max(allocation.numPages,
+						    numResident + 1),
+					   numPhysPages));
+
+	// a process that was just resumed has to fault its pages back in
+	if (allocation.numReloadFaults > 0) {
+	    allocation.numReloadFaults--;
+	    return false;
+	}
+
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+	if (totalPages <= numPhysPages || kernel.numFreePages() > 0)
+	    return false;
+
+	VMKernel.numThrashingFaults++;
+
+	if (numRunning - numSuspended <= 1)
+	    return false;
+
+	suspend(process, allocation);
+	return true;
+    }
+
+    /**
+     * Forget a process that has exited. The caller must hold the paging lock.
+     *
+     * @param	process	the process.
+     */
+    public void processExited(VMProcess process) {
+	Allocation allocation = process.getAllocation();
+	if (!allocation.running)
+	    return;
+
+	setAllocation(allocation, 0);
+	allocation.running = false;
+	numRunning--;
+    }
+
+    private void suspend(VMProcess process, Allocation allocation) {
+	int numPages = allocation.numPages;
+
+	Lib.debug(dbgVM, "\tsuspending process " + process.getPID()
+		  + " (allocation " + numPages + ")");
+
+	// suspended processes do not count towards the total
+	setAllocation(allocation, 0);
+	process.trimPages(true);
+	numSuspended++;
+	VMKernel.numSuspensions++;
+
+	while (true) {
+	    int numFaults = VMKernel.numPageFaults;
+
+	    pagingLock.release();
+	    ThreadedKernel.alarm.waitUntil(resumeInterval);
+	    pagingLock.acquire();
+
+	    if (totalPages + numPages <= numPhysPages ||
+		VMKernel.numPageFaults == numFaults)
+		break;
+	}
+
+	Lib.debug(dbgVM, "\tresuming process " + process.getPID());
+
+	numSuspended--;
+	setAllocation(allocation, numPages);
+	allocation.lastFaultTime = Machine.timer().getTime();
+	allocation.numReloadFaults = numPages;
+    }
+
+    private void setAllocation(Allocation allocation, int numPages) {
+	totalPages += numPages - allocation.numPages;
+	allocation.numPages = numPages;
+    }
+
+    /**
+     * The number of physical pages a process is judged to need, and when it
+     * last faulted.
+     */
+    public static class Allocation {
+	/**
+	 * Allocate a new, empty allocation.
+	 */
+	public Allocation() {
+	}
+
+	/**
+	 * Return the number of physical pages allocated to the process. It is
+	 * 0 while the process is suspended.
+	 *
+	 * @return	the number of pages.
+	 */
+	public int getNumPages() {
+	    return numPages;
+	}
+
+	private boolean running = false;
+	private int numPages = 0;
+	private long lastFaultTime;
+	/** Faults left before a resumed process may be suspended again. */
+	private int numReloadFaults = 0;
+    }
+
+    private Lock pagingLock;
+    private int numPhysPages;
+    private long lowerInterval, upperInterval, resumeInterval;
+
+    /** The number of processes that have faulted and not yet exited. */
+    private int numRunning = 0;
+    private int numSuspended = 0;
+    /** The sum of the allocations of the processes that are not suspended. */
+    private int totalPages = 0;
+
+    private static final char dbgVM = 'v';
+}
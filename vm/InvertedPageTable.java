@@ -0,0 +1,203 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A table indexed by physical page number that records which virtual pages
+ * of which processes map each physical page, and whether the page is pinned.
+ * A physical page may be mapped by several processes at once: read-only
+ * pages of a shared image, and pages shared copy-on-write after a fork or
+ * by <tt>PageMerger</tt>.
+ *
+ * <p>
+ * A replacement policy only chooses pages with exactly one mapping and no
+ * pins. A shared page that is not pinned can still be evicted, from every
+ * virtual page that maps it at once, when there is nothing else to evict.
+ *
+ * <p>
+ * Each process is told when one of its pages is mapped or unmapped, so that
+ * it can keep count of its resident set.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	frames = new Frame[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    frames[i] = new Frame();
+    }
+
+    /**
+     * Return the number of physical pages this table describes.
+     *
+     * @return	the number of physical pages.
+     */
+    public int getNumPhysPages() {
+	return frames.length;
+    }
+
+    /**
+     * Record that a virtual page maps a physical page.
+     *
+     * @param	ppn	the physical page.
+     * @param	process	the process that maps it.
+     * @param	vpn	the virtual page that maps it.
+     */
+    public void map(int ppn, VMProcess process, int vpn) {
+	frames[ppn].mappings.add(new Mapping(process, vpn));
+	process.countResidentPage(true);
+    }
+
+    /**
+     * Record that a virtual page no longer maps a physical page.
+     *
+     * @param	ppn	the physical page.
+     * @param	process	the process that mapped it.
+     * @param	vpn	the virtual page that mapped it.
+     */
+    public void unmap(int ppn, VMProcess process, int vpn) {
+	for (Iterator<Mapping> i=frames[ppn].mappings.iterator();
+	     i.hasNext(); ) {
+	    Mapping mapping = i.next();
+	    if (mapping.process == process && mapping.vpn == vpn) {
+		i.remove();
+		process.countResidentPage(false);
+		return;
+	    }
+	}
+
+	Lib.assertNotReached("unmapping a page that is not mapped");
+    }
+
+    /**
+     * Return the number of virtual pages mapping a physical page.
+     *
+     * @param	ppn	the physical page.
+     * @return	the number of mappings.
+     */
+    public int getNumMappings(int ppn) {
+	return frames[ppn].mappings.size();
+    }
+
+    /**
+     * Return the process that maps a physical page. If several processes map
+     * it, returns the one that mapped it first.
+     *
+     * @param	ppn	the physical page.
+     * @return	the owning process, or <tt>null</tt> if the page is unmapped.
+     */
+    public VMProcess getOwner(int ppn) {
+	Frame frame = frames[ppn];
+	return frame.mappings.isEmpty() ? null : frame.mappings.getFirst().process;
+    }
+
+    /**
+     * Return the virtual page of the owner returned by <tt>getOwner()</tt>
+     * that maps a physical page.
+     *
+     * @param	ppn	the physical page.
+     * @return	the virtual page number, or -1 if the page is unmapped.
+     */
+    public int getVPN(int ppn) {
+	Frame frame = frames[ppn];
+	return frame.mappings.isEmpty() ? -1 : frame.mappings.getFirst().vpn;
+    }
+
+    /**
+     * Return the page table entry of the owner returned by
+     * <tt>getOwner()</tt> that maps a physical page.
+     *
+     * @param	ppn	the physical page.
+     * @return	the page table entry, or <tt>null</tt> if the page is
+     *		unmapped.
+     */
+    public TranslationEntry getEntry(int ppn) {
+	Frame frame = frames[ppn];
+	if (frame.mappings.isEmpty())
+	    return null;
+
+	Mapping mapping = frame.mappings.getFirst();
+	return mapping.process.getPageTableEntry(mapping.vpn);
+    }
+
+    /**
+     * Prevent a physical page from being evicted until it is unpinned. Pins
+     * nest.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void pin(int ppn) {
+	frames[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void unpin(int ppn) {
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+	frames[ppn].pinCount--;
+    }
+
+    /**
+     * Test whether a physical page is pinned.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return frames[ppn].pinCount > 0;
+    }
+
+    /**
+     * Test whether a physical page may be evicted: it must be mapped by
+     * exactly one virtual page, and not pinned.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page may be evicted.
+     */
+    public boolean isEvictable(int ppn) {
+	Frame frame = frames[ppn];
+	return frame.pinCount == 0 && frame.mappings.size() == 1;
+    }
+
+    /**
+     * Test whether a physical page mapped by several virtual pages may be
+     * evicted from all of them: it must not be pinned. The only such pages
+     * are shared copy-on-write or through an image.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page is shared and may be evicted.
+     */
+    public boolean isSharedEvictable(int ppn) {
+	Frame frame = frames[ppn];
+	return frame.pinCount == 0 && frame.mappings.size() > 1;
+    }
+
+    private static class Mapping {
+	Mapping(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    private static class Frame {
+	LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+	int pinCount = 0;
+    }
+
+    private Frame[] frames;
+}
@@ -0,0 +1,125 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+
+/**
+ * A range of a file mapped into a run of virtual pages by <tt>mmap()</tt>.
+ * The file is the backing store of the pages: each is read from the file
+ * when it is first touched, and written back to it when it is evicted or
+ * unmapped while dirty. The mapping holds its own reference to the file, so
+ * the file descriptor it was made from may be closed.
+ *
+ * <p>
+ * A mapping does no locking of its own; <tt>VMKernel</tt> serializes all
+ * paging.
+ */
+public class MemoryMap {
+    /**
+     * Allocate a new mapping.
+     *
+     * @param	file	a reference to the mapped file, released by
+     *			<tt>close()</tt>.
+     * @param	offset	the page-aligned offset in the file of the first byte
+     *			mapped.
+     * @param	firstVPN	the first virtual page mapped.
+     * @param	length	the number of bytes mapped.
+     */
+    public MemoryMap(SharedOpenFile file, int offset, int firstVPN,
+		     int length) {
+	Lib.assertTrue(offset % pageSize == 0 && length > 0);
+
+	this.file = file;
+	this.offset = offset;
+	this.firstVPN = firstVPN;
+	this.length = length;
+    }
+
+    /**
+     * Return a copy of this mapping with its own reference to the file, for
+     * a child process.
+     *
+     * @return	the copy.
+     */
+    public MemoryMap duplicate() {
+	return new MemoryMap(file.reference(), offset, firstVPN, length);
+    }
+
+    /**
+     * Return the first virtual page of this mapping.
+     *
+     * @return	the first virtual page number.
+     */
+    public int getFirstVPN() {
+	return firstVPN;
+    }
+
+    /**
+     * Return the number of virtual pages this mapping covers.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return (length - 1) / pageSize + 1;
+    }
+
+    /**
+     * Read a mapped page from the file into a physical page. The part of the
+     * page past the end of the file or of the mapping is zero-filled.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the file could be read.
+     */
+    public boolean readPage(int vpn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int size = getPageSize(vpn);
+
+	int amount = file.read(offset + (vpn-firstVPN)*pageSize, memory,
+			       ppn*pageSize, size);
+	if (amount < 0)
+	    return false;
+
+	Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize, (byte) 0);
+	return true;
+    }
+
+    /**
+     * Write a mapped page back to the file. Only the part of the page inside
+     * the mapping is written, which may extend the file.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean writePage(int vpn, int ppn) {
+	int size = getPageSize(vpn);
+
+	return file.write(offset + (vpn-firstVPN)*pageSize,
+			  Machine.processor().getMemory(), ppn*pageSize,
+			  size) == size;
+    }
+
+    /**
+     * Release this mapping's reference to the file.
+     */
+    public void close() {
+	file.close();
+    }
+
+    /** The number of bytes of a page that lie inside the mapping. */
+    private int getPageSize(int vpn) {
+	return Math.min(pageSize, length - (vpn-firstVPN)*pageSize);
+    }
+
+    private SharedOpenFile file;
+    private int offset;
+    private int firstVPN;
+    private int length;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Not-recently-used replacement. Each TLB entry falls into one of four
+ * classes by whether it has been referenced since the last timer interrupt,
+ * and whether its page is dirty, and an entry of the lowest class is
+ * replaced: unreferenced and clean entries first, referenced and dirty ones
+ * last. Within a class, entries are replaced in turn.
+ *
+ * <p>
+ * Both bits come from <tt>TLBController</tt>, which samples the TLB on every
+ * timer interrupt, so choosing a victim does not read the TLB.
+ */
+public class NRUTLBPolicy implements TLBReplacementPolicy {
+    /**
+     * Allocate a new NRU TLB policy.
+     */
+    public NRUTLBPolicy() {
+    }
+
+    public void initialize(TLBController tlb) {
+	this.tlb = tlb;
+    }
+
+    public void entryLoaded(int number) {
+    }
+
+    public int selectVictim() {
+	int tlbSize = tlb.getSize();
+
+	int victim = -1;
+	int victimClass = 0;
+	for (int i=0; i<tlbSize; i++) {
+	    int number = (hand+i) % tlbSize;
+	    int entryClass = (tlb.isReferenced(number) ? 2 : 0) +
+		(tlb.isDirty(number) ? 1 : 0);
+
+	    if (victim == -1 || entryClass < victimClass) {
+		victim = number;
+		victimClass = entryClass;
+	    }
+	}
+
+	hand = (victim+1) % tlbSize;
+	return victim;
+    }
+
+    private TLBController tlb;
+    private int hand = 0;
+}
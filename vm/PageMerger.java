@@ -0,0 +1,209 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel thread that finds physical pages holding identical data, such as
+ * pages of zeros or data that several runs of one program compute alike, and
+ * merges them into a single page shared copy-on-write. A process that later
+ * writes to a merged page takes a read-only fault and gets its own copy back.
+ *
+ * <p>
+ * The merger wakes up every <tt>PageMerger.scanInterval</tt> ticks and
+ * examines the next <tt>PageMerger.pagesPerScan</tt> physical pages, so the
+ * time it takes from user processes can be tuned in <tt>nachos.conf</tt>.
+ * Each page is hashed, and a page is only merged once its hash is the same
+ * as on the previous pass over memory: a page that is still changing would
+ * probably be written again soon, and merging it would only cost a fault and
+ * a copy.
+ *
+ * <p>
+ * Nothing is merged while fewer than <tt>VMKernel.lowWatermark</tt> pages
+ * are free: a merged page needs a free page back as soon as it is written,
+ * and under memory pressure that copy is the allocation most likely to fail.
+ *
+ * <p>
+ * Pages of read-only sections are never merged, since they are shared
+ * through their image already, and neither are pinned pages.
+ */
+public class PageMerger implements Runnable {
+    /**
+     * Allocate a new page merger.
+     *
+     * @param	invertedPageTable	the kernel's inverted page table.
+     * @param	lowWatermark		the number of free pages below which
+     *					nothing is merged.
+     */
+    public PageMerger(InvertedPageTable invertedPageTable, int lowWatermark) {
+	this.invertedPageTable = invertedPageTable;
+	this.lowWatermark = lowWatermark;
+
+	int numPhysPages = invertedPageTable.getNumPhysPages();
+	seen = new boolean[numPhysPages];
+	owners = new VMProcess[numPhysPages];
+	vpns = new int[numPhysPages];
+	hashes = new int[numPhysPages];
+	merged = new boolean[numPhysPages];
+
+	pagesPerScan = Config.getInteger("PageMerger.pagesPerScan", 4);
+	scanInterval = Config.getInteger("PageMerger.scanInterval", 1000);
+    }
+
+    /**
+     * Scan memory forever.
+     */
+    public void run() {
+	int numPhysPages = invertedPageTable.getNumPhysPages();
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(scanInterval);
+
+	    if (kernel.numFreePages() < lowWatermark)
+		continue;
+
+	    boolean acquired = VMKernel.acquirePagingLock();
+
+	    for (int i=0; i<pagesPerScan; i++) {
+		scan(hand);
+
+		hand = (hand+1) % numPhysPages;
+		if (hand == 0)
+		    endPass();
+	    }
+
+	    VMKernel.releasePagingLock(acquired);
+	}
+    }
+
+    private void scan(int ppn) {
+	VMProcess owner = invertedPageTable.getOwner(ppn);
+	int vpn = invertedPageTable.getVPN(ppn);
+
+	if (owner == null || invertedPageTable.isPinned(ppn) ||
+	    !owner.isMergeable(vpn)) {
+	    seen[ppn] = false;
+	    return;
+	}
+
+	int hash = hash(ppn);
+
+	// a page that is already shared copy-on-write cannot change
+	if (invertedPageTable.getNumMappings(ppn) > 1) {
+	    seen[ppn] = false;
+	    candidates.put(hash, ppn);
+	    return;
+	}
+
+	boolean unchanged = seen[ppn] && owners[ppn] == owner &&
+	    vpns[ppn] == vpn && hashes[ppn] == hash;
+
+	seen[ppn] = true;
+	owners[ppn] = owner;
+	vpns[ppn] = vpn;
+	hashes[ppn] = hash;
+
+	if (!unchanged)
+	    return;
+
+	Integer other = candidates.get(hash);
+	if (other != null && other != ppn && isMergeable(other) &&
+	    samePage(other, ppn)) {
+	    merge(ppn, other);
+	    return;
+	}
+
+	candidates.put(hash, ppn);
+    }
+
+    private boolean isMergeable(int ppn) {
+	VMProcess owner = invertedPageTable.getOwner(ppn);
+
+	return owner != null && !invertedPageTable.isPinned(ppn) &&
+	    owner.isMergeable(invertedPageTable.getVPN(ppn));
+    }
+
+    private void merge(int ppn, int keeper) {
+	VMProcess owner = invertedPageTable.getOwner(ppn);
+	int vpn = invertedPageTable.getVPN(ppn);
+
+	Lib.debug(dbgVM, "\tmerging ppn " + ppn + " into ppn " + keeper);
+
+	if (invertedPageTable.getNumMappings(keeper) == 1) {
+	    invertedPageTable.getOwner(keeper)
+		.shareCopyOnWrite(invertedPageTable.getVPN(keeper));
+	}
+
+	owner.mergePage(vpn, keeper);
+
+	seen[ppn] = false;
+	merged[keeper] = true;
+	VMKernel.numMergedPages++;
+    }
+
+    /**
+     * Forget the hashes of the pass that just ended, and count the physical
+     * pages that merging is saving.
+     */
+    private void endPass() {
+	candidates.clear();
+
+	int saved = 0;
+	for (int ppn=0; ppn<merged.length; ppn++) {
+	    int numMappings = invertedPageTable.getNumMappings(ppn);
+	    if (numMappings <= 1)
+		merged[ppn] = false;
+	    else if (merged[ppn])
+		saved += numMappings-1;
+	}
+
+	VMKernel.numFramesSaved = saved;
+	VMKernel.maxFramesSaved = Math.max(VMKernel.maxFramesSaved, saved);
+    }
+
+    private static int hash(int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int hash = 0;
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++)
+	    hash = 31*hash + memory[i];
+
+	return hash;
+    }
+
+    private static boolean samePage(int ppn1, int ppn2) {
+	byte[] memory = Machine.processor().getMemory();
+
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[ppn1*pageSize + i] != memory[ppn2*pageSize + i])
+		return false;
+	}
+
+	return true;
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private int lowWatermark;
+    private int pagesPerScan;
+    private long scanInterval;
+    private int hand = 0;
+
+    /** What each physical page held when it was last scanned. */
+    private boolean[] seen;
+    private VMProcess[] owners;
+    private int[] vpns;
+    private int[] hashes;
+    /** Whether each physical page has had other pages merged into it. */
+    private boolean[] merged;
+    /** A page with each hash seen in this pass that others may merge into. */
+    private HashMap<Integer, Integer> candidates =
+	new HashMap<Integer, Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
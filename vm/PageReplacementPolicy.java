@@ -0,0 +1,53 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which physical page <tt>VMKernel</tt> evicts when memory runs out.
+ * The policy is named by the <tt>VMKernel.replacementPolicy</tt> key in
+ * <tt>nachos.conf</tt>, and is constructed with no arguments.
+ *
+ * <p>
+ * Every method is called with the paging lock held, except
+ * <tt>timerInterrupt()</tt>, which is called from the timer interrupt
+ * handler.
+ *
+ * @see	nachos.vm.ClockPolicy
+ * @see	nachos.vm.AgingPolicy
+ * @see	nachos.vm.WSClockPolicy
+ * @see	nachos.vm.RandomPolicy
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Prepare to choose among the physical pages described by an inverted
+     * page table. Called once, before any other method.
+     *
+     * @param	invertedPageTable	the kernel's inverted page table.
+     */
+    public void initialize(InvertedPageTable invertedPageTable);
+
+    /**
+     * Called when a page has been loaded into a physical page.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void pageLoaded(int ppn);
+
+    /**
+     * Called on every timer interrupt, with interrupts disabled, after the
+     * used bits in the TLB have been copied to the page table and cleared.
+     */
+    public void timerInterrupt();
+
+    /**
+     * Choose a page to evict. The page must be evictable, according to
+     * <tt>InvertedPageTable.isEvictable()</tt>. The used and dirty bits in the
+     * TLB have been copied to the page tables, so they are up to date.
+     *
+     * @return	the physical page to evict, or -1 if no page can be evicted.
+     */
+    public int selectVictim();
+}
@@ -0,0 +1,176 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel thread that keeps a reserve of free physical pages, so that a page
+ * fault can usually take a free page instead of first writing a dirty one to
+ * the swap file.
+ *
+ * <p>
+ * <tt>VMKernel</tt> wakes the daemon when the number of free pages falls below
+ * the low watermark, and the daemon then reclaims pages chosen by the
+ * replacement policy until there are as many free pages as the high
+ * watermark. Clean pages, and dirty pages that the zero-page flag or the
+ * compressed pool can take, are evicted at once. Dirty pages that need the
+ * swap file are copied, up to <tt>PageoutDaemon.batchSize</tt> of them at a
+ * time, and written together to a run of contiguous slots while the paging
+ * lock is released, so faults are not held up by the write. The pages stay
+ * resident and usable meanwhile; each is marked clean afterwards only if it
+ * still holds what was written, and is evicted without a write on a later
+ * pass.
+ */
+public class PageoutDaemon implements Runnable {
+    /**
+     * Allocate a new pageout daemon.
+     *
+     * @param	invertedPageTable	the kernel's inverted page table.
+     * @param	pagingLock	the lock that serializes paging.
+     * @param	lowWatermark	the number of free pages below which the
+     *				daemon is woken.
+     * @param	highWatermark	the number of free pages the daemon reclaims
+     *				up to.
+     */
+    public PageoutDaemon(InvertedPageTable invertedPageTable, Lock pagingLock,
+			 int lowWatermark, int highWatermark) {
+	Lib.assertTrue(lowWatermark > 0 && highWatermark >= lowWatermark);
+
+	this.invertedPageTable = invertedPageTable;
+	this.pagingLock = pagingLock;
+	this.lowWatermark = lowWatermark;
+	this.highWatermark = highWatermark;
+
+	wakeup = new Condition2(pagingLock);
+
+	batchSize = Config.getInteger("PageoutDaemon.batchSize", 8);
+	Lib.assertTrue(batchSize > 0);
+
+	ppns = new int[batchSize];
+	owners = new VMProcess[batchSize];
+	vpns = new int[batchSize];
+	buffer = new byte[batchSize*pageSize];
+    }
+
+    /**
+     * Wake the daemon if the number of free pages has fallen below the low
+     * watermark. The caller must hold the paging lock.
+     *
+     * @param	numFreePages	the number of free physical pages.
+     */
+    public void checkFreePages(int numFreePages) {
+	if (numFreePages < lowWatermark)
+	    wakeup.wake();
+    }
+
+    /**
+     * Reclaim pages whenever woken, forever.
+     */
+    public void run() {
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	pagingLock.acquire();
+
+	while (true) {
+	    wakeup.sleep();
+	    VMKernel.numPageoutWakeups++;
+
+	    while (kernel.numFreePages() < highWatermark && reclaim())
+		;
+	}
+    }
+
+    /**
+     * Evict the pages that can be evicted without a write, and clean one
+     * batch of those that cannot. Called with the paging lock held; releases
+     * it while the batch is written.
+     *
+     * @return	<tt>true</tt> if any page was evicted or cleaned, or
+     *		<tt>false</tt> if the daemon should wait to be woken again.
+     */
+    private boolean reclaim() {
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+	int numPhysPages = invertedPageTable.getNumPhysPages();
+
+	boolean progress = false;
+	int numBatched = 0;
+
+	for (int i=0; i<numPhysPages && numBatched < batchSize &&
+		 kernel.numFreePages() + numBatched < highWatermark; i++) {
+	    if (VMKernel.tlb != null)
+		VMKernel.tlb.sample();
+
+	    int ppn = VMKernel.replacementPolicy.selectVictim();
+	    if (ppn == -1)
+		break;
+
+	    VMProcess owner = invertedPageTable.getOwner(ppn);
+	    int vpn = invertedPageTable.getVPN(ppn);
+
+	    if (owner.evictPage(vpn, false)) {
+		Lib.debug(dbgVM, "\tpageout evicted ppn " + ppn);
+		VMKernel.numPageoutEvictions++;
+		progress = true;
+		continue;
+	    }
+
+	    // keep the policy from choosing the page again in this batch
+	    invertedPageTable.pin(ppn);
+	    System.arraycopy(Machine.processor().getMemory(), ppn*pageSize,
+			     buffer, numBatched*pageSize, pageSize);
+	    ppns[numBatched] = ppn;
+	    owners[numBatched] = owner;
+	    vpns[numBatched] = vpn;
+	    numBatched++;
+	}
+
+	for (int i=0; i<numBatched; i++)
+	    invertedPageTable.unpin(ppns[i]);
+
+	if (numBatched == 0)
+	    return progress;
+
+	int first = VMKernel.swap.allocateRun(numBatched);
+
+	Lib.debug(dbgVM, "\tpageout writing " + numBatched
+		  + " pages to slot " + first);
+
+	pagingLock.release();
+	boolean written = VMKernel.swap.writeRun(first, buffer, numBatched);
+	pagingLock.acquire();
+
+	VMKernel.numPageoutBatches++;
+
+	for (int i=0; i<numBatched; i++) {
+	    if (written &&
+		owners[i].cleanPage(vpns[i], first+i, buffer, i*pageSize)) {
+		VMKernel.numPagesCleaned++;
+		progress = true;
+	    }
+	    else {
+		VMKernel.swap.free(first+i);
+	    }
+
+	    owners[i] = null;
+	}
+
+	return progress;
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private Lock pagingLock;
+    private Condition2 wakeup;
+    private int lowWatermark, highWatermark;
+    private int batchSize;
+
+    /** The pages of the batch being cleaned, and a copy of their data. */
+    private int[] ppns;
+    private VMProcess[] owners;
+    private int[] vpns;
+    private byte[] buffer;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,45 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Evicts an evictable page chosen uniformly at random, ignoring used and
+ * dirty bits. Useful as a baseline for the other policies.
+ */
+public class RandomPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new random policy.
+     */
+    public RandomPolicy() {
+    }
+
+    public void initialize(InvertedPageTable invertedPageTable) {
+	this.invertedPageTable = invertedPageTable;
+	candidates = new int[invertedPageTable.getNumPhysPages()];
+    }
+
+    public void pageLoaded(int ppn) {
+    }
+
+    public void timerInterrupt() {
+    }
+
+    public int selectVictim() {
+	int numCandidates = 0;
+	for (int ppn=0; ppn<candidates.length; ppn++) {
+	    if (invertedPageTable.isEvictable(ppn))
+		candidates[numCandidates++] = ppn;
+	}
+
+	if (numCandidates == 0)
+	    return -1;
+
+	return candidates[Lib.random(numCandidates)];
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private int[] candidates;
+}
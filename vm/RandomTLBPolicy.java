@@ -0,0 +1,30 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Replaces a TLB entry chosen uniformly at random.
+ */
+public class RandomTLBPolicy implements TLBReplacementPolicy {
+    /**
+     * Allocate a new random TLB policy.
+     */
+    public RandomTLBPolicy() {
+    }
+
+    public void initialize(TLBController tlb) {
+	tlbSize = tlb.getSize();
+    }
+
+    public void entryLoaded(int number) {
+    }
+
+    public int selectVictim() {
+	return Lib.random(tlbSize);
+    }
+
+    private int tlbSize;
+}
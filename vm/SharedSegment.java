@@ -0,0 +1,200 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A segment of physical pages that several processes can attach at virtual
+ * pages of their choosing, created by <tt>shmget()</tt>. Every process that
+ * attaches the segment maps the same physical pages, so what one writes the
+ * others read at once, without a copy.
+ *
+ * <p>
+ * The pages of a segment are allocated and zero-filled when it is created,
+ * and stay resident and pinned until it is destroyed: they are never evicted,
+ * merged or shared copy-on-write. The process that creates a segment holds
+ * it until that process exits, even if it never attaches it, so a segment
+ * nobody attaches does not outlive its creator. A segment is destroyed once
+ * its creator has exited and the last process attached to it has detached
+ * or exited.
+ *
+ * <p>
+ * The kernel-wide table of segments is kept in static members of this class.
+ * Like the segments themselves, it relies on <tt>VMKernel</tt>'s paging lock
+ * for mutual exclusion.
+ */
+public class SharedSegment {
+    private SharedSegment(int id, int key, int[] ppns, VMProcess creator) {
+	this.id = id;
+	this.key = key;
+	this.ppns = ppns;
+	this.creator = creator;
+    }
+
+    /**
+     * Return the identifier of the segment with a key, creating the segment
+     * if there is none. Key 0 always creates a new segment, which other
+     * processes can only find by its identifier. The caller must hold the
+     * paging lock.
+     *
+     * @param	key	the key chosen by the processes sharing the segment.
+     * @param	size	the size of the segment in bytes.
+     * @param	process	the calling process, which holds a new segment
+     *			until <tt>releaseCreated()</tt>.
+     * @return	the segment identifier, or -1 if a segment with the key is
+     *		smaller than <i>size</i>, or physical memory for a new one
+     *		cannot be found.
+     */
+    public static int get(int key, int size, VMProcess process) {
+	if (size <= 0)
+	    return -1;
+
+	int numPages = (size + pageSize - 1) / pageSize;
+
+	SharedSegment segment = (key == 0) ? null : segmentsByKey.get(key);
+	if (segment != null)
+	    return (numPages <= segment.getNumPages()) ? segment.id : -1;
+
+	if (numPages > maxPages - numPagesAllocated)
+	    return -1;
+
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+	byte[] memory = Machine.processor().getMemory();
+
+	int[] ppns = new int[numPages];
+	for (int i=0; i<numPages; i++) {
+	    ppns[i] = kernel.getFreePage();
+	    if (ppns[i] == -1) {
+		for (int j=0; j<i; j++) {
+		    VMKernel.invertedPageTable.unpin(ppns[j]);
+		    kernel.free(ppns[j]);
+		}
+		return -1;
+	    }
+
+	    VMKernel.invertedPageTable.pin(ppns[i]);
+	    Arrays.fill(memory, ppns[i]*pageSize, (ppns[i]+1)*pageSize,
+			(byte) 0);
+	}
+
+	segment = new SharedSegment(nextID++, key, ppns, process);
+	segmentsByID.put(segment.id, segment);
+	if (key != 0)
+	    segmentsByKey.put(key, segment);
+
+	numPagesAllocated += numPages;
+	return segment.id;
+    }
+
+    /**
+     * Let go of the segments a process created, destroying those that no
+     * process is attached to. Called when the process exits; the caller must
+     * hold the paging lock.
+     *
+     * @param	process	the process that is exiting.
+     */
+    public static void releaseCreated(VMProcess process) {
+	// destroy() changes the table, so find the segments first
+	ArrayList<SharedSegment> created = new ArrayList<SharedSegment>();
+	for (SharedSegment segment : segmentsByID.values()) {
+	    if (segment.creator == process)
+		created.add(segment);
+	}
+
+	for (SharedSegment segment : created) {
+	    segment.creator = null;
+	    if (segment.numAttachments == 0)
+		segment.destroy();
+	}
+    }
+
+    /**
+     * Return the segment with an identifier.
+     *
+     * @param	id	the segment identifier.
+     * @return	the segment, or <tt>null</tt> if there is none.
+     */
+    public static SharedSegment find(int id) {
+	return segmentsByID.get(id);
+    }
+
+    /**
+     * Return the number of pages in this segment.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return ppns.length;
+    }
+
+    /**
+     * Return the physical page holding a page of this segment.
+     *
+     * @param	i	the page of the segment.
+     * @return	the physical page number.
+     */
+    public int getPPN(int i) {
+	return ppns[i];
+    }
+
+    /**
+     * Count a process attaching this segment.
+     */
+    public void attach() {
+	numAttachments++;
+    }
+
+    /**
+     * Count a process detaching this segment, destroying it if no process
+     * is attached any more and its creator has exited. The caller must hold
+     * the paging lock.
+     */
+    public void detach() {
+	Lib.assertTrue(numAttachments > 0);
+	if (--numAttachments == 0 && creator == null)
+	    destroy();
+    }
+
+    /**
+     * Free the pages of this segment and remove it from the table.
+     */
+    private void destroy() {
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+	for (int i=0; i<ppns.length; i++) {
+	    VMKernel.invertedPageTable.unpin(ppns[i]);
+	    kernel.free(ppns[i]);
+	}
+
+	segmentsByID.remove(id);
+	if (key != 0)
+	    segmentsByKey.remove(key);
+
+	numPagesAllocated -= ppns.length;
+    }
+
+    private int id;
+    private int key;
+    private int[] ppns;
+    private int numAttachments = 0;
+    /** The process that created this segment, until it exits. */
+    private VMProcess creator;
+
+    private static HashMap<Integer, SharedSegment> segmentsByID =
+	new HashMap<Integer, SharedSegment>();
+    private static HashMap<Integer, SharedSegment> segmentsByKey =
+	new HashMap<Integer, SharedSegment>();
+    private static int nextID = 1;
+    private static int numPagesAllocated = 0;
+    /** At most this many physical pages may be held by segments. */
+    private static int maxPages =
+	Config.getInteger("SharedSegment.maxPages",
+			  Machine.processor().getNumPhysPages()/4);
+
+    private static final int pageSize = Processor.pageSize;
+}
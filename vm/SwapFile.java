@@ -0,0 +1,205 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * A file of page-sized slots holding pages that have been evicted from main
+ * memory. Slots are allocated on demand, and freed slots are reused before
+ * the file grows, lowest first. A run of contiguous slots can be allocated
+ * and written in one operation, so that a batch of pages costs one write.
+ * A slot can be shared by several pages holding the same data, and is only
+ * freed once every one of them has freed it.
+ *
+ * <p>
+ * A swap file does no locking of its own; <tt>VMKernel</tt> serializes all
+ * paging, including swap I/O.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file. The file is opened through the kernel's
+     * open file table and unlinked at once, so that no user process can
+     * open, truncate or remove it while it holds other processes' pages. It
+     * is removed from the file system when it is closed.
+     *
+     * @param	files	the open file table to create the file through.
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(OpenFileTable files, String name) {
+	file = files.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+
+	files.unlink(name);
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocate() {
+	if (!freeSlots.isEmpty())
+	    return freeSlots.pollFirst();
+
+	return numSlots++;
+    }
+
+    /**
+     * Allocate a run of contiguous slots, growing the file if no run of free
+     * slots is long enough.
+     *
+     * @param	length	the number of slots.
+     * @return	the first slot of the run.
+     */
+    public int allocateRun(int length) {
+	Lib.assertTrue(length > 0);
+
+	int first = -1;
+	int runLength = 0;
+	for (int slot : freeSlots) {
+	    if (runLength > 0 && slot == first+runLength) {
+		runLength++;
+	    }
+	    else {
+		first = slot;
+		runLength = 1;
+	    }
+
+	    if (runLength == length) {
+		for (int i=0; i<length; i++)
+		    freeSlots.remove(first+i);
+		return first;
+	    }
+	}
+
+	first = numSlots;
+	numSlots += length;
+	return first;
+    }
+
+    /**
+     * Free a slot returned by <tt>allocate()</tt>, or drop one reference to
+     * it if it is shared.
+     *
+     * @param	slot	the slot number.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots);
+
+	Integer sharers = extraReferences.get(slot);
+	if (sharers == null)
+	    freeSlots.add(slot);
+	else if (sharers == 1)
+	    extraReferences.remove(slot);
+	else
+	    extraReferences.put(slot, sharers-1);
+    }
+
+    /**
+     * Add a reference to an allocated slot, for another page holding the
+     * same data.
+     *
+     * @param	slot	the slot number.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots &&
+		       !freeSlots.contains(slot));
+
+	Integer sharers = extraReferences.get(slot);
+	extraReferences.put(slot, sharers == null ? 1 : sharers+1);
+    }
+
+    /**
+     * Test whether more than one page holds a reference to a slot. A shared
+     * slot must not be overwritten.
+     *
+     * @param	slot	the slot number.
+     * @return	<tt>true</tt> if the slot is shared.
+     */
+    public boolean isShared(int slot) {
+	return extraReferences.containsKey(slot);
+    }
+
+    /**
+     * Read a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to read into.
+     * @return	<tt>true</tt> if the whole page was read.
+     */
+    public boolean read(int slot, int ppn) {
+	return file.read(slot*pageSize, Machine.processor().getMemory(),
+			 ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Write a physical page to a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to write.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, int ppn) {
+	return file.write(slot*pageSize, Machine.processor().getMemory(),
+			  ppn*pageSize, pageSize) == pageSize;
+    }
+
+    /**
+     * Write a page held in a buffer to a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	data	a buffer holding the page at offset 0.
+     * @return	<tt>true</tt> if the whole page was written.
+     */
+    public boolean write(int slot, byte[] data) {
+	return file.write(slot*pageSize, data, 0, pageSize) == pageSize;
+    }
+
+    /**
+     * Write pages held in a buffer to a run of contiguous slots.
+     *
+     * @param	first	the first slot of the run.
+     * @param	data	a buffer holding the pages, one after the other.
+     * @param	length	the number of pages.
+     * @return	<tt>true</tt> if every page was written.
+     */
+    public boolean writeRun(int first, byte[] data, int length) {
+	return file.write(first*pageSize, data, 0, length*pageSize) ==
+	    length*pageSize;
+    }
+
+    /**
+     * Copy one slot to another, for example when a process with swapped-out
+     * pages is forked.
+     *
+     * @param	from	the slot to copy.
+     * @param	to	the slot to overwrite.
+     * @return	<tt>true</tt> if the page was copied.
+     */
+    public boolean copy(int from, int to) {
+	return file.read(from*pageSize, page, 0, pageSize) == pageSize &&
+	    file.write(to*pageSize, page, 0, pageSize) == pageSize;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+    }
+
+    private OpenFile file;
+    private int numSlots = 0;
+    private TreeSet<Integer> freeSlots = new TreeSet<Integer>();
+    /** The number of references to each shared slot beyond the first. */
+    private HashMap<Integer, Integer> extraReferences =
+	new HashMap<Integer, Integer>();
+    private byte[] page = new byte[pageSize];
+
+    private static final int pageSize = Processor.pageSize;
+}
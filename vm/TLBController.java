@@ -0,0 +1,362 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Manages the processor's TLB on behalf of whichever process is running.
+ *
+ * <p>
+ * The controller remembers which page table entry each TLB entry was loaded
+ * from. It can therefore find a free entry, or the entry for a virtual page,
+ * without reading the TLB. <tt>Processor.readTLBEntry()</tt> returns a fresh
+ * copy on every call, so the TLB is read back only when an entry may hold
+ * used or dirty bits that its page table entry lacks: that is, when the page
+ * is not already marked used, and is writable but not yet marked dirty.
+ *
+ * <p>
+ * The processor's TLB has no address-space tags, so the controller tags its
+ * contents instead: the TLB belongs to one <tt>Context</tt>, and is left
+ * alone while kernel threads run or when the owner runs again. Only when
+ * another address space is activated are the entries written back, saved in
+ * the outgoing context, and replaced by those saved in the incoming one, so a
+ * process finds its translations where it left them instead of missing on
+ * each of them again. Saving can be turned off with the
+ * <tt>TLBController.saveContexts</tt> key in <tt>nachos.conf</tt>, in which
+ * case a switch simply empties the TLB.
+ *
+ * <p>
+ * To help tune the TLB, each context counts its accesses, misses and
+ * reloaded entries. The processor does not count TLB lookups, so a context
+ * counts the ticks its process spends running user code instead: each is one
+ * instruction, which looks up the TLB at least once to be fetched. Every
+ * miss is also counted as an access, so <tt>getNumHits()</tt> is a lower
+ * bound.
+ */
+public class TLBController {
+    /**
+     * Allocate a new TLB controller.
+     *
+     * @param	policy	chooses which entry to replace when the TLB is full.
+     */
+    public TLBController(TLBReplacementPolicy policy) {
+	this.policy = policy;
+
+	int tlbSize = Machine.processor().getTLBSize();
+	entries = new TranslationEntry[tlbSize];
+	ppns = new int[tlbSize];
+	referenced = new boolean[tlbSize];
+
+	saveContexts = Config.getBoolean("TLBController.saveContexts", true);
+
+	policy.initialize(this);
+    }
+
+    /**
+     * Return the number of entries in the TLB.
+     *
+     * @return	the number of entries.
+     */
+    public int getSize() {
+	return entries.length;
+    }
+
+    /**
+     * Give the TLB to an address space. If it belongs to another, its entries
+     * are written back and saved in their context, and the entries saved in
+     * the new context are reloaded, unless their pages have since been
+     * evicted.
+     *
+     * @param	context	the address space about to run.
+     */
+    public void activate(Context context) {
+	if (context == owner)
+	    return;
+
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<entries.length; i++) {
+	    if (owner != null) {
+		if (entries[i] != null)
+		    writeBack(i);
+		owner.entries[i] = entries[i];
+		owner.ppns[i] = ppns[i];
+	    }
+
+	    TranslationEntry entry = context.entries[i];
+	    context.entries[i] = null;
+
+	    if (saveContexts && entry != null && entry.valid &&
+		entry.ppn == context.ppns[i]) {
+		entries[i] = entry;
+		ppns[i] = entry.ppn;
+		referenced[i] = false;
+		processor.writeTLBEntry(i, entry);
+		policy.entryLoaded(i);
+		context.numReloads++;
+	    }
+	    else if (entries[i] != null) {
+		entries[i] = null;
+		processor.writeTLBEntry(i, invalidEntry);
+	    }
+	}
+
+	owner = context;
+    }
+
+    /**
+     * Test whether the TLB holds the entries of an address space.
+     *
+     * @param	context	the address space.
+     * @return	<tt>true</tt> if the TLB was last activated for it.
+     */
+    public boolean isOwner(Context context) {
+	return owner == context;
+    }
+
+    /**
+     * Load a page table entry into the TLB after a miss, replacing an entry
+     * if the TLB is full. An invalid entry is not loaded; the access simply
+     * misses again.
+     *
+     * @param	entry	the page table entry of the running process.
+     */
+    public void load(TranslationEntry entry) {
+	if (owner != null)
+	    owner.numMisses++;
+
+	if (!entry.valid)
+	    return;
+
+	// the access that missed is about to use the page
+	entry.used = true;
+
+	int number = -1;
+	for (int i=0; i<entries.length; i++) {
+	    if (entries[i] == null) {
+		number = i;
+		break;
+	    }
+	}
+
+	if (number == -1) {
+	    number = policy.selectVictim();
+	    writeBack(number);
+	}
+
+	entries[number] = entry;
+	ppns[number] = entry.ppn;
+	referenced[number] = true;
+
+	Machine.processor().writeTLBEntry(number, entry);
+	policy.entryLoaded(number);
+    }
+
+    /**
+     * Drop the TLB entry for a virtual page, writing its used and dirty bits
+     * back to the page table first.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    public void invalidate(int vpn) {
+	for (int i=0; i<entries.length; i++) {
+	    if (entries[i] != null && entries[i].vpn == vpn)
+		clear(i);
+	}
+    }
+
+    /**
+     * Write every TLB entry back to the page table and empty the TLB.
+     */
+    public void flush() {
+	for (int i=0; i<entries.length; i++) {
+	    if (entries[i] != null)
+		clear(i);
+	}
+    }
+
+    /**
+     * Write the used and dirty bits of every TLB entry back to the page
+     * table, note which entries have been referenced since the last sample,
+     * and clear their used bits so that the next reference is noticed too.
+     * Called on every timer interrupt.
+     */
+    public void sample() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<entries.length; i++) {
+	    if (entries[i] == null)
+		continue;
+
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    referenced[i] = tlbEntry.used;
+	    if (!tlbEntry.used)
+		continue;
+
+	    merge(i, tlbEntry);
+	    tlbEntry.used = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+    }
+
+    /**
+     * Test whether a TLB entry has been referenced since the last call to
+     * <tt>sample()</tt>, or since it was loaded.
+     *
+     * @param	number	the index into the TLB.
+     * @return	<tt>true</tt> if the entry is valid and was referenced.
+     */
+    public boolean isReferenced(int number) {
+	return entries[number] != null && referenced[number];
+    }
+
+    /**
+     * Test whether the page of a TLB entry is known to be dirty.
+     *
+     * @param	number	the index into the TLB.
+     * @return	<tt>true</tt> if the entry is valid and its page is dirty.
+     */
+    public boolean isDirty(int number) {
+	return entries[number] != null && entries[number].dirty;
+    }
+
+    private void clear(int number) {
+	writeBack(number);
+	entries[number] = null;
+	Machine.processor().writeTLBEntry(number, invalidEntry);
+    }
+
+    private void writeBack(int number) {
+	TranslationEntry entry = entries[number];
+	if (!entry.valid || entry.ppn != ppns[number])
+	    return;
+
+	// nothing the TLB could add
+	if (entry.used && (entry.dirty || entry.readOnly))
+	    return;
+
+	merge(number, Machine.processor().readTLBEntry(number));
+    }
+
+    private void merge(int number, TranslationEntry tlbEntry) {
+	TranslationEntry entry = entries[number];
+	if (entry.valid && entry.ppn == ppns[number]) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * The TLB entries of an address space, saved while another address space
+     * owns the TLB, and counts of how the TLB served it.
+     */
+    public static class Context {
+	/**
+	 * Allocate a new context with no saved entries.
+	 */
+	public Context() {
+	    int tlbSize = Machine.processor().getTLBSize();
+	    entries = new TranslationEntry[tlbSize];
+	    ppns = new int[tlbSize];
+	}
+
+	/**
+	 * Start counting accesses: the process is about to run user code.
+	 */
+	public void enterUser() {
+	    if (userSince == -1)
+		userSince = Machine.timer().getTime();
+	}
+
+	/**
+	 * Stop counting accesses: the process has trapped into the kernel.
+	 */
+	public void leaveUser() {
+	    if (userSince != -1) {
+		numAccesses += Machine.timer().getTime() - userSince;
+		userSince = -1;
+	    }
+	}
+
+	/**
+	 * Stop counting accesses while the process is switched out, noting
+	 * whether it was running user code.
+	 */
+	public void suspend() {
+	    resumeInUser = (userSince != -1);
+	    leaveUser();
+	}
+
+	/**
+	 * Start counting accesses again if the process was switched out while
+	 * running user code. A new process starts out in user code.
+	 */
+	public void resume() {
+	    if (resumeInUser)
+		enterUser();
+	}
+
+	/**
+	 * Return the number of TLB accesses made in this address space: the
+	 * user instructions run, each of which was fetched through the TLB.
+	 *
+	 * @return	the number of accesses.
+	 */
+	public long getNumAccesses() {
+	    return numAccesses;
+	}
+
+	/**
+	 * Return the number of accesses that hit the TLB.
+	 *
+	 * @return	the number of hits.
+	 */
+	public long getNumHits() {
+	    return Math.max(numAccesses - numMisses, 0);
+	}
+
+	/**
+	 * Return the number of TLB misses taken in this address space.
+	 *
+	 * @return	the number of misses.
+	 */
+	public int getNumMisses() {
+	    return numMisses;
+	}
+
+	/**
+	 * Return the number of saved entries reloaded into the TLB when this
+	 * address space was activated. Each would otherwise have been a miss
+	 * if it was used again.
+	 *
+	 * @return	the number of entries reloaded.
+	 */
+	public int getNumReloads() {
+	    return numReloads;
+	}
+
+	private TranslationEntry[] entries;
+	private int[] ppns;
+	private int numMisses = 0;
+	private int numReloads = 0;
+	private long numAccesses = 0;
+	/** When the process last entered user code, or -1 if it is not in
+	 *  user code. */
+	private long userSince = -1;
+	private boolean resumeInUser = true;
+    }
+
+    private TLBReplacementPolicy policy;
+    private boolean saveContexts;
+    /** The address space whose entries are in the TLB. */
+    private Context owner = null;
+    /** The page table entry each TLB entry was loaded from, or null. */
+    private TranslationEntry[] entries;
+    /** The physical page each TLB entry was loaded with. */
+    private int[] ppns;
+    private boolean[] referenced;
+
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+}
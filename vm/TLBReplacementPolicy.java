@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which TLB entry <tt>TLBController</tt> replaces when the TLB is
+ * full. The policy is named by the <tt>VMKernel.tlbReplacementPolicy</tt> key
+ * in <tt>nachos.conf</tt>, and is constructed with no arguments.
+ *
+ * <p>
+ * A policy is consulted on every TLB miss, so it should neither allocate
+ * memory nor read the TLB itself.
+ *
+ * @see	nachos.vm.FIFOTLBPolicy
+ * @see	nachos.vm.RandomTLBPolicy
+ * @see	nachos.vm.NRUTLBPolicy
+ */
+public interface TLBReplacementPolicy {
+    /**
+     * Prepare to choose among the entries of a TLB. Called once, before any
+     * other method.
+     *
+     * @param	tlb	the TLB controller.
+     */
+    public void initialize(TLBController tlb);
+
+    /**
+     * Called when a translation has been loaded into a TLB entry.
+     *
+     * @param	number	the index into the TLB.
+     */
+    public void entryLoaded(int number);
+
+    /**
+     * Choose a TLB entry to replace. Called only when every entry is valid.
+     *
+     * @return	the index into the TLB.
+     */
+    public int selectVictim();
+}
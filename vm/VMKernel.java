@@ -7,6 +7,27 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * When physical memory runs out, <tt>getFreePage()</tt> evicts a page chosen
+ * by the <tt>PageReplacementPolicy</tt> named by the
+ * <tt>VMKernel.replacementPolicy</tt> key in <tt>nachos.conf</tt>, the clock
+ * algorithm by default. Dirty pages are saved before their frame is reused:
+ * in a pool of compressed pages of <tt>VMKernel.compressedPoolPages</tt>
+ * pages' worth of kernel memory while it has room, and in a swap file
+ * otherwise. Clean pages are simply dropped and later reloaded from wherever
+ * they came from. All paging is serialized by a single lock.
+ *
+ * <p>
+ * Unless <tt>VMKernel.lowWatermark</tt> is 0, a <tt>PageoutDaemon</tt> keeps
+ * between <tt>VMKernel.lowWatermark</tt> and <tt>VMKernel.highWatermark</tt>
+ * pages free in the background, writing dirty pages out in batches, so that a
+ * fault seldom has to wait for a write before it can read its page in.
+ *
+ * <p>
+ * If <tt>VMKernel.pageFaultFrequency</tt> is set, a
+ * <tt>FaultFrequencyController</tt> sizes each process's resident set by how
+ * often it faults, and suspends processes when memory is overcommitted.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +42,75 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	pagingLock = new Lock();
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+	swap = new SwapFile(openFileTable,
+			    Config.getString("VMKernel.swapFile", "swap"));
+	maxFaultAround = Config.getInteger("VMKernel.maxFaultAround", 8);
+
+	int poolPages = Config.getInteger("VMKernel.compressedPoolPages", 8);
+	if (poolPages > 0)
+	    compressedPool = new CompressedPool(poolPages*Processor.pageSize);
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	replacementPolicy = (PageReplacementPolicy)
+	    Lib.constructObject(policyName);
+	replacementPolicy.initialize(invertedPageTable);
+
+	if (Machine.processor().hasTLB()) {
+	    String tlbPolicyName =
+		Config.getString("VMKernel.tlbReplacementPolicy",
+				 "nachos.vm.FIFOTLBPolicy");
+	    tlb = new TLBController((TLBReplacementPolicy)
+				    Lib.constructObject(tlbPolicyName));
+	    printTLBStatistics =
+		Config.getBoolean("VMKernel.printTLBStatistics", false);
+	}
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	int lowWatermark = Config.getInteger("VMKernel.lowWatermark",
+					     numPhysPages/8);
+	int highWatermark = Config.getInteger("VMKernel.highWatermark",
+					      Math.max(lowWatermark,
+						       numPhysPages/4));
+	if (lowWatermark > 0) {
+	    pageoutDaemon = new PageoutDaemon(invertedPageTable, pagingLock,
+					      lowWatermark, highWatermark);
+	    new KThread(pageoutDaemon).setName("pageout daemon").fork();
+	}
+
+	if (Config.getBoolean("VMKernel.pageFaultFrequency", false))
+	    faultFrequencyController = new FaultFrequencyController(pagingLock);
+
+	if (Config.getBoolean("VMKernel.mergePages", false)) {
+	    pageMerger = new PageMerger(invertedPageTable, lowWatermark);
+	    new KThread(pageMerger).setName("page merger").fork();
+	}
+
+	// sample used bits before the alarm wakes anyone up
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() { timerInterrupt(); }
+	    });
+    }
+
+    /**
+     * Handle a timer interrupt by sampling the TLB's used bits, and passing
+     * the interrupt to the replacement policy and then to the alarm.
+     */
+    private void timerInterrupt() {
+	if (tlb != null)
+	    tlb.sample();
+
+	replacementPolicy.timerInterrupt();
+	alarm.timerInterrupt();
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +121,255 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
+	System.out.println("Swap: page faults " + numPageFaults
+			   + ", swap ins " + numSwapIns
+			   + ", swap outs " + numSwapOuts);
+	if (faultFrequencyController != null)
+	    System.out.println("Fault frequency: pages trimmed "
+			       + numTrimmedPages + ", thrashing faults "
+			       + numThrashingFaults + ", suspensions "
+			       + numSuspensions);
+	if (pageoutDaemon != null)
+	    System.out.println("Pageout: wakeups " + numPageoutWakeups
+			       + ", pages evicted " + numPageoutEvictions
+			       + ", cleaned " + numPagesCleaned
+			       + " in " + numPageoutBatches + " batches");
+	System.out.println("Compressed swap: pages stored " + numCompressedStores
+			   + " in " + numCompressedBytes + " bytes"
+			   + (numCompressedStores == 0 ? "" :
+			      " (" + 100*numCompressedBytes
+			      / (numCompressedStores*Processor.pageSize)
+			      + "%)")
+			   + ", loaded " + numCompressedLoads
+			   + ", zero pages " + numZeroPages);
+	if (pageMerger != null)
+	    System.out.println("Page merging: pages merged " + numMergedPages
+			       + ", frames saved " + numFramesSaved
+			       + " (peak " + maxFramesSaved + ")");
+	if (numMappedReads + numMappedWrites > 0)
+	    System.out.println("Mapped files: pages read " + numMappedReads
+			       + ", written back " + numMappedWrites);
+	System.out.println("Fault-around: pages prefetched " + numPrefetches
+			   + ", used " + numPrefetchHits);
+	if (tlb != null)
+	    System.out.println("TLB: accesses " + numTLBAccesses + ", hits "
+			       + numTLBHits
+			       + VMProcess.hitRate(numTLBHits, numTLBAccesses)
+			       + ", entries reloaded " + numTLBReloads);
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page, evicting a resident page if memory is full.
+     *
+     * @return	the physical page number, or -1 if every page is shared or
+     *		pinned.
+     */
+    public int getFreePage() {
+	boolean acquired = acquirePagingLock();
+
+	int ppn = super.getFreePage();
+	while (ppn == -1 && evictPage())
+	    ppn = super.getFreePage();
+
+	if (pageoutDaemon != null)
+	    pageoutDaemon.checkFreePages(numFreePages());
+
+	releasePagingLock(acquired);
+
+	return ppn;
+    }
+
+    /**
+     * Choose a page with the replacement policy and evict it. The caller must
+     * hold the paging lock.
+     *
+     * @return	<tt>true</tt> if a page was evicted.
+     */
+    private boolean evictPage() {
+	// the TLB may have newer used and dirty bits
+	if (tlb != null)
+	    tlb.sample();
+
+	int ppn = replacementPolicy.selectVictim();
+	if (ppn == -1)
+	    ppn = selectSharedVictim();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno page can be evicted");
+	    return false;
+	}
+
+	if (invertedPageTable.getNumMappings(ppn) > 1) {
+	    Lib.debug(dbgVM, "\tevicting shared ppn " + ppn);
+	    return evictSharedPage(ppn);
+	}
+
+	VMProcess owner = invertedPageTable.getOwner(ppn);
+	int vpn = invertedPageTable.getVPN(ppn);
+
+	Lib.debug(dbgVM, "\tevicting ppn " + ppn + " (vpn " + vpn + ")");
+
+	return owner.evictPage(vpn, true);
+    }
+
+    /**
+     * Choose a shared page to evict when the replacement policy finds no page
+     * mapped only once, for example because merging or forking has left
+     * every unpinned page shared copy-on-write. The caller must hold the
+     * paging lock.
+     *
+     * @return	the physical page, or -1 if every page is pinned or free.
+     */
+    private int selectSharedVictim() {
+	int numPhysPages = invertedPageTable.getNumPhysPages();
+
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = sharedHand;
+	    sharedHand = (sharedHand+1) % numPhysPages;
+
+	    if (invertedPageTable.isSharedEvictable(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Evict a shared page from every virtual page that maps it, which frees
+     * it. If the page must be saved, it is written to the swap file once,
+     * and every mapping that needs the copy shares the slot. The caller must
+     * hold the paging lock.
+     *
+     * @param	ppn	the physical page.
+     * @return	<tt>true</tt> if the page was freed, or <tt>false</tt> if it
+     *		could not be written to the swap file.
+     */
+    private boolean evictSharedPage(int ppn) {
+	int slot = -1;
+	int numMappings;
+	while ((numMappings = invertedPageTable.getNumMappings(ppn)) > 0) {
+	    VMProcess owner = invertedPageTable.getOwner(ppn);
+	    slot = owner.evictSharedPage(invertedPageTable.getVPN(ppn), slot);
+
+	    // a mapping that is left means the write failed
+	    if (invertedPageTable.getNumMappings(ppn) == numMappings)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Acquire the paging lock unless the current thread already holds it.
+     *
+     * @return	<tt>true</tt> if the lock was acquired, in which case it must
+     *		be passed to <tt>releasePagingLock()</tt>.
+     */
+    static boolean acquirePagingLock() {
+	if (pagingLock.isHeldByCurrentThread())
+	    return false;
+
+	pagingLock.acquire();
+	return true;
+    }
+
+    /**
+     * Release the paging lock if it was acquired by the matching call to
+     * <tt>acquirePagingLock()</tt>.
+     *
+     * @param	acquired	the value returned by
+     *				<tt>acquirePagingLock()</tt>.
+     */
+    static void releasePagingLock(boolean acquired) {
+	if (acquired)
+	    pagingLock.release();
+    }
+
+    /** Who maps each physical page. */
+    public static InvertedPageTable invertedPageTable;
+    /** Backing store for evicted dirty pages. */
+    public static SwapFile swap;
+    /** Compressed swap tier in front of the swap file, or <tt>null</tt>. */
+    public static CompressedPool compressedPool;
+    /** Chooses the pages to evict. */
+    public static PageReplacementPolicy replacementPolicy;
+    /** The most pages fault-around loads after a fault; 0 disables it. */
+    public static int maxFaultAround;
+    /** Loads and writes back TLB entries, or <tt>null</tt> without a TLB. */
+    public static TLBController tlb;
+    /** Print each process's TLB statistics when it exits. */
+    public static boolean printTLBStatistics = false;
+    /** Sizes resident sets by fault frequency, or <tt>null</tt> if disabled. */
+    public static FaultFrequencyController faultFrequencyController = null;
+
+    /** The number of pages brought into memory on demand. */
+    public static int numPageFaults = 0;
+    /** The number of pages read from the swap file. */
+    public static int numSwapIns = 0;
+    /** The number of pages written to the swap file by evicting them. */
+    public static int numSwapOuts = 0;
+    /** The number of pages stored in the compressed pool. */
+    public static int numCompressedStores = 0;
+    /** The total size of the pages stored in the compressed pool. */
+    public static long numCompressedBytes = 0;
+    /** The number of pages loaded from the compressed pool. */
+    public static int numCompressedLoads = 0;
+    /** The number of evicted pages recorded as pages of zeros. */
+    public static int numZeroPages = 0;
+    /** The number of pages evicted for not being used between faults. */
+    public static int numTrimmedPages = 0;
+    /** The number of faults taken while memory was overcommitted. */
+    public static int numThrashingFaults = 0;
+    /** The number of times a process was suspended to stop thrashing. */
+    public static int numSuspensions = 0;
+    /** The number of times the pageout daemon was woken. */
+    public static int numPageoutWakeups = 0;
+    /** The number of pages the pageout daemon evicted without a write. */
+    public static int numPageoutEvictions = 0;
+    /** The number of dirty pages the pageout daemon wrote and made clean. */
+    public static int numPagesCleaned = 0;
+    /** The number of batches of pages the pageout daemon wrote. */
+    public static int numPageoutBatches = 0;
+    /** The number of pages merged into identical pages. */
+    public static int numMergedPages = 0;
+    /** The physical pages merging saved at the end of the last scan. */
+    public static int numFramesSaved = 0;
+    /** The most physical pages merging has saved. */
+    public static int maxFramesSaved = 0;
+    /** The number of pages of mapped files read from their file. */
+    public static int numMappedReads = 0;
+    /** The number of dirty pages of mapped files written to their file. */
+    public static int numMappedWrites = 0;
+    /** The number of pages loaded by fault-around. */
+    public static int numPrefetches = 0;
+    /** The number of pages loaded by fault-around that were then used. */
+    public static int numPrefetchHits = 0;
+    /** The number of saved TLB entries reloaded by exited processes. */
+    public static int numTLBReloads = 0;
+    /** The number of TLB accesses made by exited processes. */
+    public static long numTLBAccesses = 0;
+    /** The number of those accesses that hit the TLB. */
+    public static long numTLBHits = 0;
+
+    /** Keeps pages free in the background, or <tt>null</tt> if disabled. */
+    private static PageoutDaemon pageoutDaemon = null;
+    /** Merges identical pages, or <tt>null</tt> if disabled. */
+    private static PageMerger pageMerger = null;
+
+    /** Where the search for a shared page to evict resumes. */
+    private static int sharedHand = 0;
+
+    /** Serializes page faults, eviction and swap I/O. */
+    private static Lock pagingLock;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,27 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is loaded when the process starts. Every page begins invalid, and
+ * is filled in the first time it is touched, either by the processor (a TLB
+ * miss or page fault) or by the kernel copying to or from user memory: pages
+ * of COFF sections are loaded from the executable's image, and stack and
+ * argument pages are zero-filled. Starting a program therefore costs only the
+ * pages it actually uses. Likewise, a page only gets an entry in the page
+ * table once it is touched or mapped, so heap, mapped files and shared
+ * segments can be spread over the whole 32-bit address space.
+ *
+ * <p>
+ * A resident page may be evicted by <tt>VMKernel</tt> when memory runs out.
+ * A dirty page is saved first: a page of zeros is only flagged, other pages
+ * are compressed into the kernel's <tt>CompressedPool</tt> while it has room,
+ * and the rest are written to their own slot in the swap file. The page is
+ * restored from there on its next fault.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,22 +33,37 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	faultWindow = VMKernel.maxFaultAround/2;
+
+	if (Machine.processor().hasTLB())
+	    tlbContext = new TLBController.Context();
     }
 
     /**
-     * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Restore the state of this process after a context switch. Called by
+     * <tt>UThread.restoreState()</tt>. The TLB is not flushed when this
+     * process is switched out; it is handed over here, and only if another
+     * process used it in the meantime.
      */
-    public void saveState() {
-	super.saveState();
+    public void restoreState() {
+	if (Machine.processor().hasTLB()) {
+	    VMKernel.tlb.activate(tlbContext);
+	    tlbContext.resume();
+	}
+	else {
+	    super.restoreState();
+	}
     }
 
     /**
-     * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * Save the state of this process before a context switch.
      */
-    public void restoreState() {
-	super.restoreState();
+    public void saveState() {
+	if (tlbContext != null)
+	    tlbContext.suspend();
+
+	super.saveState();
     }
 
     /**
@@ -39,15 +73,1183 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// every page is invalid until faultPage() loads it
+	return true;
+    }
+
+    /**
+     * Return the paging state of a virtual page of this process. Every page
+     * of a <tt>VMProcess</tt> is a <tt>VMPage</tt>.
+     */
+    protected VMPage getPage(int vpn) {
+	return (VMPage) super.getPage(vpn);
+    }
+
+    protected VMPage createPage(int vpn) {
+	return (VMPage) super.createPage(vpn);
+    }
+
+    protected VirtualPage newPage(int vpn) {
+	return new VMPage(vpn);
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	// write mapped files back before their pages are freed
+	for (int vpn=pageTable.next(0); vpn != -1; vpn=pageTable.next(vpn+1)) {
+	    VMPage page = getPage(vpn);
+	    if (page.map != null)
+		unmapFile(page.map);
+	    else if (page.segmentStart)
+		detachSegment(vpn);
+	}
+	SharedSegment.releaseCreated(this);
+
+	flushTLB();
+
+	for (int vpn=pageTable.next(0); vpn != -1; vpn=pageTable.next(vpn+1)) {
+	    VMPage page = getPage(vpn);
+	    if (page.entry.valid)
+		VMKernel.invertedPageTable.unmap(page.entry.ppn, this, vpn);
+
+	    if (page.swapSlot != -1) {
+		VMKernel.swap.free(page.swapSlot);
+		page.swapSlot = -1;
+	    }
+
+	    if (page.compressed != null) {
+		VMKernel.compressedPool.free(page.compressed);
+		page.compressed = null;
+	    }
+	}
+
+	if (VMKernel.faultFrequencyController != null)
+	    VMKernel.faultFrequencyController.processExited(this);
+
 	super.unloadSections();
-    }    
+
+	VMKernel.releasePagingLock(acquired);
+
+	Lib.debug(dbgVM, "process " + getPID() + ": most pages resident "
+		  + maxResidentPages);
+
+	if (tlbContext != null) {
+	    tlbContext.leaveUser();
+
+	    long accesses = tlbContext.getNumAccesses();
+	    String report = "process " + getPID() + ": TLB accesses " + accesses
+		+ ", hits " + tlbContext.getNumHits()
+		+ hitRate(tlbContext.getNumHits(), accesses)
+		+ ", misses " + tlbContext.getNumMisses()
+		+ ", entries reloaded " + tlbContext.getNumReloads();
+	    if (VMKernel.printTLBStatistics)
+		System.out.println(report);
+	    else
+		Lib.debug(dbgTLB, report);
+
+	    VMKernel.numTLBAccesses += accesses;
+	    VMKernel.numTLBHits += tlbContext.getNumHits();
+	    VMKernel.numTLBReloads += tlbContext.getNumReloads();
+	}
+    }
+
+    /**
+     * Format a hit rate as a percentage in parentheses, or as nothing if
+     * there were no accesses.
+     */
+    static String hitRate(long hits, long accesses) {
+	if (accesses == 0)
+	    return "";
+
+	return " (" + (hits*1000/accesses)/10.0 + "%)";
+    }
+
+    /**
+     * Make sure a page is resident before the kernel accesses it.
+     */
+    protected int translatePage(int vpn, boolean writing) {
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	int ppn = -1;
+	if (isResident(vpn) || faultPage(vpn)) {
+	    notePageUsed(vpn);
+	    ppn = super.translatePage(vpn, writing);
+	}
+
+	VMKernel.releasePagingLock(acquired);
+
+	return ppn;
+    }
+
+    /**
+     * Pin a page by making it resident and marking its physical page pinned
+     * in the inverted page table, so that it is not evicted.
+     */
+    protected int pinPage(int vpn, boolean writing) {
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	int ppn = translatePage(vpn, writing);
+	if (ppn != -1)
+	    VMKernel.invertedPageTable.pin(ppn);
+
+	VMKernel.releasePagingLock(acquired);
+
+	return ppn;
+    }
+
+    protected void unpinPage(int ppn) {
+	VMKernel.invertedPageTable.unpin(ppn);
+    }
+
+    /**
+     * Break copy-on-write sharing, dropping any TLB entry that still refers
+     * to the shared page.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	VMPage page = getPage(vpn);
+	if (page == null)
+	    return false;
+
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	int oldPpn = page.entry.ppn;
+	boolean broken = super.breakCopyOnWrite(vpn);
+	if (broken) {
+	    int ppn = page.entry.ppn;
+	    if (ppn != oldPpn) {
+		VMKernel.invertedPageTable.unmap(oldPpn, this, vpn);
+		VMKernel.invertedPageTable.map(ppn, this, vpn);
+		VMKernel.replacementPolicy.pageLoaded(ppn);
+	    }
+
+	    invalidateTLBEntry(vpn);
+	}
+
+	VMKernel.releasePagingLock(acquired);
+
+	return broken;
+    }
+
+    /**
+     * Share resident pages with the child, and give it its own copy of each
+     * page that is swapped out. A compressed page is copied within the pool
+     * if there is room, and into the swap file otherwise. The child inherits
+     * mapped files and attached shared segments. Fails if a swapped-out
+     * page cannot be copied, leaving the child for the caller to unload.
+     */
+    protected boolean copyAddressSpace(UserProcess process) {
+	VMProcess child = (VMProcess) process;
+
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	// the TLB may have newer used and dirty bits
+	flushTLB();
+
+	super.copyAddressSpace(child);
+
+	// after a failed copy, keep going only to record what the child holds
+	boolean copied = true;
+
+	for (int vpn=pageTable.next(0); vpn != -1; vpn=pageTable.next(vpn+1)) {
+	    VMPage page = getPage(vpn);
+	    SharedSegment segment = page.segment;
+	    if (segment != null) {
+		// a shared segment stays shared, not copy-on-write
+		VMPage childPage = child.getPage(vpn);
+		VMKernel.invertedPageTable.map(page.entry.ppn, child, vpn);
+		page.entry.readOnly = childPage.entry.readOnly = false;
+		page.copyOnWrite = childPage.copyOnWrite = false;
+		childPage.segment = segment;
+		childPage.segmentStart = page.segmentStart;
+		if (page.segmentStart)
+		    segment.attach();
+		continue;
+	    }
+
+	    MemoryMap map = page.map;
+	    if (map != null && map.getFirstVPN() == vpn) {
+		map = map.duplicate();
+		for (int i=0; i<map.getNumPages(); i++)
+		    child.createPage(vpn+i).map = map;
+	    }
+
+	    if (page.entry.valid) {
+		TranslationEntry entry = child.getPage(vpn).entry;
+		VMKernel.invertedPageTable.map(entry.ppn, child, vpn);
+		// the child has no copy of the page in the swap file, but a
+		// mapped page is backed by the file for both processes
+		if (map == null)
+		    entry.dirty = true;
+	    }
+	    else if (page.zero) {
+		child.createPage(vpn).zero = true;
+	    }
+	    else if (!copied) {
+		continue;
+	    }
+	    else if (page.compressed != null) {
+		byte[] data = VMKernel.compressedPool.copy(page.compressed);
+		if (data != null) {
+		    child.createPage(vpn).compressed = data;
+		}
+		else {
+		    int slot = VMKernel.swap.allocate();
+		    copied = VMKernel.swap.write(slot,
+			VMKernel.compressedPool.decompress(page.compressed));
+		    adoptSwapSlot(child, vpn, slot, copied);
+		}
+	    }
+	    else if (page.swapSlot != -1) {
+		int slot = VMKernel.swap.allocate();
+		copied = VMKernel.swap.copy(page.swapSlot, slot);
+		adoptSwapSlot(child, vpn, slot, copied);
+	    }
+	}
+
+	VMKernel.releasePagingLock(acquired);
+
+	return copied;
+    }
+
+    /**
+     * Give a child being forked the swap slot its copy of a page was written
+     * to, or free the slot if the copy could not be written.
+     *
+     * @param	child	the child process.
+     * @param	vpn	the virtual page.
+     * @param	slot	the slot holding the copy.
+     * @param	copied	whether the copy was written.
+     */
+    private static void adoptSwapSlot(VMProcess child, int vpn, int slot,
+				      boolean copied) {
+	if (copied) {
+	    child.createPage(vpn).swapSlot = slot;
+	}
+	else {
+	    Lib.debug(dbgVM, "\tcould not copy vpn " + vpn + " to swap slot "
+		      + slot);
+	    VMKernel.swap.free(slot);
+	}
+    }
+
+    /**
+     * Load a page of this process into memory if it is not already resident,
+     * then try to load the pages after it too (see <tt>faultAround()</tt>).
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page is now resident, <tt>false</tt> if
+     *		it is not part of the address space or memory is full.
+     */
+    protected boolean faultPage(int vpn) {
+	// beyond the heap, only the pages of mapped files are loaded on demand
+	if (vpn < 0 ||
+	    (vpn >= numPages && (getPage(vpn) == null || getPage(vpn).map == null)))
+	    return false;
+
+	// loading may block, and an I/O worker may fault in the same page
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	if (isResident(vpn)) {
+	    VMKernel.releasePagingLock(acquired);
+	    return true;
+	}
+
+	// only a fault on this process's own thread says how it is running;
+	// if it was suspended, the page may have been loaded meanwhile
+	if (VMKernel.faultFrequencyController != null &&
+	    UserKernel.currentProcess() == this &&
+	    VMKernel.faultFrequencyController.pageFault(this) &&
+	    isResident(vpn)) {
+	    VMKernel.releasePagingLock(acquired);
+	    return true;
+	}
+
+	Lib.debug(dbgVM, "\tpage fault on vpn " + vpn);
+	VMKernel.numPageFaults++;
+
+	if (!loadPage(vpn)) {
+	    Lib.debug(dbgVM, "\tout of physical memory");
+	    VMKernel.releasePagingLock(acquired);
+	    return false;
+	}
+
+	faultAround(vpn);
+
+	VMKernel.releasePagingLock(acquired);
+	return true;
+    }
+
+    /**
+     * Load the pages following a faulting page, so that a process reading
+     * its address space in order takes one fault per window instead of one
+     * per page. The window doubles, up to <tt>VMKernel.maxFaultAround</tt>
+     * pages, each time a fault lands just past the pages loaded for the
+     * previous one, and halves on any other fault, so a process that faults
+     * at random soon stops prefetching. It starts at half the maximum.
+     *
+     * <p>
+     * Only pages of COFF sections, of mapped files and in the swap file are
+     * loaded, and only into free physical pages: prefetching never evicts
+     * anything.
+     * The caller must hold the paging lock.
+     *
+     * @param	vpn	the virtual page that faulted.
+     */
+    private void faultAround(int vpn) {
+	if (vpn == nextSequentialFault)
+	    faultWindow = Math.min(Math.max(2*faultWindow, 1),
+				   VMKernel.maxFaultAround);
+	else
+	    faultWindow /= 2;
+
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	int last = vpn;
+	for (int next=vpn+1; next<=vpn+faultWindow && next<Processor.maxPages;
+	     next++) {
+	    VMPage page = getPage(next);
+	    if (page == null || !page.entry.valid) {
+		boolean saved = page != null &&
+		    (page.swapSlot != -1 || page.compressed != null ||
+		     page.map != null);
+		if (!saved && (next >= numPages || findSection(next) == -1))
+		    break;
+		if (kernel.numFreePages() == 0 || !loadPage(next))
+		    break;
+
+		getPage(next).prefetched = true;
+		VMKernel.numPrefetches++;
+	    }
+
+	    last = next;
+	}
+
+	nextSequentialFault = last+1;
+    }
+
+    /**
+     * Note that a page is being used, counting a prefetch that paid off if
+     * it was loaded by <tt>faultAround()</tt>.
+     *
+     * @param	vpn	the virtual page.
+     */
+    private void notePageUsed(int vpn) {
+	VMPage page = getPage(vpn);
+	if (page.prefetched) {
+	    page.prefetched = false;
+	    VMKernel.numPrefetchHits++;
+	}
+    }
+
+    /**
+     * Load a page that is not resident. A page that was evicted is loaded
+     * from wherever <tt>evictPage()</tt> put it, and a page of a mapped file
+     * is read from the file. Otherwise, pages of read-only sections are shared
+     * with other processes running the same image; other section pages are
+     * loaded from the image; stack and argument pages are zero-filled. The
+     * caller must hold the paging lock.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page was loaded, <tt>false</tt> if memory
+     *		is full or the swap file or mapped file could not be read.
+     */
+    private boolean loadPage(int vpn) {
+	VMPage page = createPage(vpn);
+	TranslationEntry entry = page.entry;
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+	int ppn = -1;
+	boolean readOnly = false;
+	// a page taken out of the pool or the zero-page flag has no copy left
+	boolean dirty = false;
+
+	int s = findSection(vpn);
+	if (page.zero) {
+	    ppn = kernel.getFreePage();
+	    if (ppn != -1) {
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+		page.zero = false;
+		dirty = true;
+	    }
+	}
+	else if (page.compressed != null) {
+	    ppn = kernel.getFreePage();
+	    if (ppn != -1) {
+		VMKernel.compressedPool.decompress(page.compressed, ppn);
+		VMKernel.compressedPool.free(page.compressed);
+		page.compressed = null;
+		VMKernel.numCompressedLoads++;
+		dirty = true;
+	    }
+	}
+	else if (page.swapSlot != -1) {
+	    ppn = kernel.getFreePage();
+	    if (ppn != -1) {
+		if (!VMKernel.swap.read(page.swapSlot, ppn)) {
+		    kernel.free(ppn);
+		    return false;
+		}
+		VMKernel.numSwapIns++;
+
+		// other pages still need a shared slot as it is
+		if (VMKernel.swap.isShared(page.swapSlot)) {
+		    VMKernel.swap.free(page.swapSlot);
+		    page.swapSlot = -1;
+		    dirty = true;
+		}
+	    }
+	}
+	else if (page.map != null) {
+	    ppn = kernel.getFreePage();
+	    if (ppn != -1) {
+		if (!page.map.readPage(vpn, ppn)) {
+		    kernel.free(ppn);
+		    return false;
+		}
+		VMKernel.numMappedReads++;
+	    }
+	}
+	else if (s != -1) {
+	    CoffSection section = coff.getSection(s);
+	    int spn = vpn - section.getFirstVPN();
+
+	    readOnly = section.isReadOnly();
+	    if (readOnly) {
+		ppn = image.mapSharedPage(s, spn);
+	    }
+	    else {
+		ppn = kernel.getFreePage();
+		if (ppn != -1)
+		    image.loadPage(s, spn, ppn);
+	    }
+	}
+	else {
+	    ppn = kernel.getFreePage();
+	    if (ppn != -1) {
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    }
+	}
+
+	if (ppn == -1)
+	    return false;
+
+	VMKernel.invertedPageTable.map(ppn, this, vpn);
+	VMKernel.replacementPolicy.pageLoaded(ppn);
+
+	// a page reloaded after eviction is no longer shared with anyone
+	page.copyOnWrite = false;
+	page.prefetched = false;
+
+	entry.ppn = ppn;
+	entry.readOnly = readOnly;
+	entry.used = false;
+	entry.dirty = dirty;
+	entry.valid = true;
+
+	return true;
+    }
+
+    /**
+     * Evict a resident page chosen by <tt>VMKernel</tt> or
+     * <tt>PageoutDaemon</tt>. The page must not be pinned, and the caller
+     * must hold the paging lock. If other virtual pages share its physical
+     * page, only this mapping is dropped, and the physical page is freed
+     * along with the last one. A dirty page
+     * of a mapped file is written back to the file; another dirty page is
+     * saved by <tt>storePage()</tt> if it can be kept in memory, and written
+     * to the swap file otherwise. A clean one can be reloaded from wherever
+     * it came from.
+     *
+     * @param	vpn	the virtual page to evict.
+     * @param	mayWrite	whether the page may be written to the swap file.
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if
+     *		it would have had to be written to the swap file, or the write
+     *		failed and the page was left resident.
+     */
+    boolean evictPage(int vpn, boolean mayWrite) {
+	VMPage page = getPage(vpn);
+	TranslationEntry entry = page.entry;
+	Lib.assertTrue(entry.valid);
+
+	int ppn = entry.ppn;
+
+	invalidateTLBEntry(vpn);
+
+	int s = findSection(vpn);
+	boolean shared = s != -1 && coff.getSection(s).isReadOnly();
+
+	MemoryMap map = page.map;
+
+	boolean stored = shared || !entry.dirty ||
+	    (map == null && storePage(vpn, ppn));
+	if (!stored && map == null && !mayWrite)
+	    return false;
+
+	// from here on, the process faults and waits for the paging lock
+	entry.valid = false;
+	page.prefetched = false;
+	VMKernel.invertedPageTable.unmap(ppn, this, vpn);
+
+	if (shared) {
+	    image.unmapSharedPage(s, vpn - coff.getSection(s).getFirstVPN(),
+				  ppn);
+	    return true;
+	}
+
+	if (!stored && map != null) {
+	    if (!map.writePage(vpn, ppn))
+		Lib.debug(dbgVM, "\tcould not write back vpn " + vpn);
+	    VMKernel.numMappedWrites++;
+	}
+	else if (!stored) {
+	    if (page.swapSlot == -1)
+		page.swapSlot = VMKernel.swap.allocate();
+
+	    if (!VMKernel.swap.write(page.swapSlot, ppn)) {
+		Lib.debug(dbgVM, "\tcould not swap out vpn " + vpn);
+
+		// the slot may hold part of the page, so it is no copy at all
+		VMKernel.swap.free(page.swapSlot);
+		page.swapSlot = -1;
+
+		VMKernel.invertedPageTable.map(ppn, this, vpn);
+		entry.valid = true;
+		return false;
+	    }
+	    VMKernel.numSwapOuts++;
+	}
+
+	entry.dirty = false;
+
+	((UserKernel) Kernel.kernel).free(ppn);
+	return true;
+    }
+
+    /**
+     * Evict one of the virtual pages that share a physical page, so that
+     * <tt>VMKernel</tt> can free the physical page by evicting each of them
+     * in turn. Every mapping holds the same data, so a dirty page is written
+     * to the swap file by the first mapping that needs the copy, and the
+     * others share that slot. A page of zeros is only flagged. The caller
+     * must hold the paging lock.
+     *
+     * @param	vpn	the virtual page to evict.
+     * @param	slot	the slot another mapping wrote the page to, or -1.
+     * @return	the slot holding the page, or -1 if none was written. If the
+     *		page could not be written, it is left mapped.
+     */
+    int evictSharedPage(int vpn, int slot) {
+	VMPage page = getPage(vpn);
+	TranslationEntry entry = page.entry;
+
+	int s = findSection(vpn);
+	boolean shared = s != -1 && coff.getSection(s).isReadOnly();
+
+	if (entry.dirty && !shared && page.map == null &&
+	    !CompressedPool.isZeroPage(entry.ppn)) {
+	    if (slot == -1) {
+		slot = VMKernel.swap.allocate();
+		if (!VMKernel.swap.write(slot, entry.ppn)) {
+		    Lib.debug(dbgVM, "\tcould not swap out vpn " + vpn);
+		    VMKernel.swap.free(slot);
+		    return -1;
+		}
+		VMKernel.numSwapOuts++;
+	    }
+	    else {
+		VMKernel.swap.share(slot);
+	    }
+
+	    if (page.swapSlot != -1)
+		VMKernel.swap.free(page.swapSlot);
+	    page.swapSlot = slot;
+	    entry.dirty = false;
+	}
+
+	evictPage(vpn, true);
+	return slot;
+    }
+
+    /**
+     * Save a dirty page that is being evicted in memory if a swap tier there
+     * will take it: a page of zeros is only flagged, and other pages are
+     * compressed into the kernel's pool if it has room.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page holding it.
+     * @return	<tt>true</tt> if the page was saved, or <tt>false</tt> if it
+     *		must be written to the swap file.
+     */
+    private boolean storePage(int vpn, int ppn) {
+	VMPage page = getPage(vpn);
+	byte[] data = null;
+
+	if (CompressedPool.isZeroPage(ppn)) {
+	    page.zero = true;
+	    VMKernel.numZeroPages++;
+	}
+	else if (VMKernel.compressedPool != null &&
+		 (data = VMKernel.compressedPool.compress(ppn)) != null) {
+	    page.compressed = data;
+	    VMKernel.numCompressedStores++;
+	    VMKernel.numCompressedBytes += data.length;
+	}
+	else {
+	    return false;
+	}
+
+	// the copy in the swap file, if any, is out of date
+	if (page.swapSlot != -1) {
+	    VMKernel.swap.free(page.swapSlot);
+	    page.swapSlot = -1;
+	}
+
+	return true;
+    }
+
+    /**
+     * Adopt a copy of a resident page that <tt>PageoutDaemon</tt> wrote to
+     * the swap file, making the page clean so that it can later be evicted
+     * without a write. The daemon writes without the paging lock, so the copy
+     * is only adopted if the page is still resident, holds the data that was
+     * written, and is not pinned by a system call that may be writing to it.
+     * The caller must hold the paging lock.
+     *
+     * @param	vpn	the virtual page, which the process may have given up
+     *			while the copy was written.
+     * @param	slot	the swap slot holding the copy.
+     * @param	data	a buffer holding the copy.
+     * @param	offset	the offset of the copy in <tt>data</tt>.
+     * @return	<tt>true</tt> if the copy was adopted; if not, the caller
+     *		must free the slot.
+     */
+    boolean cleanPage(int vpn, int slot, byte[] data, int offset) {
+	VMPage page = getPage(vpn);
+	if (page == null || !page.entry.valid ||
+	    VMKernel.invertedPageTable.isPinned(page.entry.ppn))
+	    return false;
+
+	TranslationEntry entry = page.entry;
+
+	// make the next write to the page set its dirty bit again
+	invalidateTLBEntry(vpn);
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[entry.ppn*pageSize + i] != data[offset + i])
+		return false;
+	}
+
+	if (page.swapSlot != -1)
+	    VMKernel.swap.free(page.swapSlot);
+
+	page.swapSlot = slot;
+	entry.dirty = false;
+	return true;
+    }
+
+    /**
+     * Test whether a page may be merged with an identical page by
+     * <tt>PageMerger</tt>: it must be resident, not part of a mapped file,
+     * and not part of a read-only section, which is already shared through
+     * the image.
+     *
+     * @param	vpn	the virtual page.
+     * @return	<tt>true</tt> if the page may be merged.
+     */
+    boolean isMergeable(int vpn) {
+	VMPage page = getPage(vpn);
+	if (page == null || !page.entry.valid || page.map != null ||
+	    page.segment != null)
+	    return false;
+
+	int s = findSection(vpn);
+	return s == -1 || !coff.getSection(s).isReadOnly();
+    }
+
+    /**
+     * Make a resident page read-only, so that another process can share its
+     * physical page until either one writes to it. The caller must hold the
+     * paging lock.
+     *
+     * @param	vpn	the virtual page.
+     */
+    void shareCopyOnWrite(int vpn) {
+	// a writable TLB entry would bypass the read-only fault
+	invalidateTLBEntry(vpn);
+
+	VMPage page = getPage(vpn);
+	page.entry.readOnly = true;
+	page.copyOnWrite = true;
+    }
+
+    /**
+     * Replace the physical page of a resident page with another page holding
+     * the same data, shared copy-on-write, and free the original. The caller
+     * must hold the paging lock.
+     *
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page to share.
+     */
+    void mergePage(int vpn, int ppn) {
+	VMPage page = getPage(vpn);
+	TranslationEntry entry = page.entry;
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	invalidateTLBEntry(vpn);
+
+	VMKernel.invertedPageTable.unmap(entry.ppn, this, vpn);
+	kernel.free(entry.ppn);
+
+	kernel.referencePage(ppn);
+	VMKernel.invertedPageTable.map(ppn, this, vpn);
+
+	// the data is unchanged, so the dirty bit still says whether it has a
+	// copy in the swap file or the executable
+	entry.ppn = ppn;
+	entry.readOnly = true;
+	page.copyOnWrite = true;
+    }
+
+    /**
+     * Evict the resident pages of this process that have not been used since
+     * the last call, or all of them, and clear the used bits of those that
+     * remain. Shared and pinned pages are left alone. The caller must hold
+     * the paging lock.
+     *
+     * @param	all	whether to evict used pages too.
+     * @return	the number of pages evicted.
+     */
+    int trimPages(boolean all) {
+	// the TLB may have newer used and dirty bits
+	if (VMKernel.tlb != null)
+	    VMKernel.tlb.sample();
+
+	int numEvicted = 0;
+	for (int vpn=pageTable.next(0); vpn != -1; vpn=pageTable.next(vpn+1)) {
+	    TranslationEntry entry = getPage(vpn).entry;
+	    if (!entry.valid)
+		continue;
+
+	    if ((all || !entry.used) &&
+		VMKernel.invertedPageTable.isEvictable(entry.ppn)) {
+		if (evictPage(vpn, true))
+		    numEvicted++;
+	    }
+	    else {
+		entry.used = false;
+	    }
+	}
+
+	return numEvicted;
+    }
+
+    /**
+     * Return the number of physical pages this process maps, including pages
+     * it shares.
+     *
+     * @return	the number of resident pages.
+     */
+    int getNumResidentPages() {
+	return numResidentPages;
+    }
+
+    /**
+     * Count a physical page mapped or unmapped by this process. Called by
+     * <tt>InvertedPageTable</tt>.
+     *
+     * @param	mapped	<tt>true</tt> if a page was mapped, <tt>false</tt> if
+     *			one was unmapped.
+     */
+    void countResidentPage(boolean mapped) {
+	if (mapped) {
+	    numResidentPages++;
+	    maxResidentPages = Math.max(maxResidentPages, numResidentPages);
+	}
+	else {
+	    numResidentPages--;
+	}
+    }
+
+    /**
+     * Return the number of physical pages this process is judged to need by
+     * <tt>FaultFrequencyController</tt>.
+     *
+     * @return	the allocation.
+     */
+    FaultFrequencyController.Allocation getAllocation() {
+	return allocation;
+    }
+
+    /**
+     * Return this process's page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return getPage(vpn).entry;
+    }
+
+    /**
+     * Return the COFF section containing a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section number, or -1 if the page is a stack or argument
+     *		page.
+     */
+    protected int findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return s;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Load the translation for a virtual page into the TLB, faulting the page
+     * in first if necessary.
+     *
+     * @param	vpn	the virtual page that missed in the TLB.
+     * @return	<tt>true</tt> if the translation was loaded.
+     */
+    protected boolean handleTLBMiss(int vpn) {
+	// Only a real page fault takes the paging lock. Refilling the TLB with
+	// a resident page cannot block, so the page cannot be evicted first;
+	// and if every miss queued on the lock, each hand-off would switch
+	// processes and empty the TLB again, and no process would make progress.
+	if (!isResident(vpn)) {
+	    if (!faultPage(vpn))
+		return false;
+	}
+
+	notePageUsed(vpn);
+
+	// if the page was evicted after faultPage() returned, nothing is
+	// loaded, and the access simply misses again
+	VMKernel.tlb.load(getPage(vpn).entry);
+	return true;
+    }
+
+    /**
+     * Drop the TLB entry for a virtual page, if this process owns the TLB
+     * and the page is in it.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void invalidateTLBEntry(int vpn) {
+	if (ownsTLB())
+	    VMKernel.tlb.invalidate(vpn);
+    }
+
+    /**
+     * Write every TLB entry back to the page table and empty the TLB, if this
+     * process owns it.
+     */
+    protected void flushTLB() {
+	if (ownsTLB())
+	    VMKernel.tlb.flush();
+    }
+
+    /**
+     * Test whether the TLB may hold entries of this process. It holds the
+     * entries of the last process to run, which need not be the current one
+     * while a kernel thread is running.
+     */
+    private boolean ownsTLB() {
+	return tlbContext != null && VMKernel.tlb.isOwner(tlbContext);
+    }
+
+    private static final int
+	syscallMmap = 10,
+	syscallMunmap = 21,
+	syscallShmget = 22,
+	syscallShmat = 23,
+	syscallShmdt = 24;
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address, int offset,
+     *							int length);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  shmget(int key, int size);</tt></td></tr>
+     * <tr><td>23</td><td><tt>char *shmat(int id, char *address);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  shmdt(char *address);</tt></td></tr>
+     * </table>
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1, a2, a3);
+	case syscallMunmap:
+	    return handleMunmap(a0);
+	case syscallShmget:
+	    return handleShmget(a0, a1);
+	case syscallShmat:
+	    return handleShmat(a0, a1);
+	case syscallShmdt:
+	    return handleShmdt(a0);
+
+	default:
+	    return super.handleSyscall(syscall, a0, a1, a2, a3);
+	}
+    }
+
+    /**
+     * Handle the mmap() system call. Maps <i>length</i> bytes of a file,
+     * starting at a page-aligned <i>offset</i>, at a page-aligned address
+     * anywhere above the program's heap. Nothing is read until the pages are
+     * touched.
+     */
+    private int handleMmap(int fd, int address, int offset, int length) {
+	SharedOpenFile file = getOpenFile(fd);
+	if (file == null || Processor.offsetFromAddress(address) != 0 ||
+	    offset < 0 || offset % pageSize != 0 || length <= 0 ||
+	    length > Integer.MAX_VALUE - offset) {
+	    Lib.debug(dbgProcess, "\tmmap: bad arguments");
+	    return -1;
+	}
+
+	// (length + pageSize - 1) would overflow for lengths near the maximum
+	int firstVPN = Processor.pageFromAddress(address);
+	int lastVPN = firstVPN + (length - 1)/pageSize + 1;
+	if (firstVPN < numPages || lastVPN <= firstVPN ||
+	    lastVPN > Processor.maxPages) {
+	    Lib.debug(dbgProcess, "\tmmap: address outside free address space");
+	    return -1;
+	}
+
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	if (!isUnused(firstVPN, lastVPN)) {
+	    VMKernel.releasePagingLock(acquired);
+	    Lib.debug(dbgProcess, "\tmmap: address already mapped");
+	    return -1;
+	}
+
+	MemoryMap map =
+	    new MemoryMap(file.reference(), offset, firstVPN, length);
+	for (int vpn=firstVPN; vpn<lastVPN; vpn++)
+	    createPage(vpn).map = map;
+
+	VMKernel.releasePagingLock(acquired);
+
+	return length;
+    }
+
+    /**
+     * Handle the munmap() system call. Writes the dirty pages of the mapping
+     * that starts at <i>address</i> back to the file, and removes it.
+     */
+    private int handleMunmap(int address) {
+	int vpn = Processor.pageFromAddress(address);
+	VMPage page = getPage(vpn);
+	if (Processor.offsetFromAddress(address) != 0 || page == null ||
+	    page.map == null || page.map.getFirstVPN() != vpn)
+	    return -1;
+
+	boolean acquired = VMKernel.acquirePagingLock();
+	unmapFile(page.map);
+	VMKernel.releasePagingLock(acquired);
+
+	return 0;
+    }
+
+    /**
+     * Remove a mapping, writing its dirty pages back to the file. The caller
+     * must hold the paging lock.
+     *
+     * @param	map	the mapping.
+     */
+    private void unmapFile(MemoryMap map) {
+	int firstVPN = map.getFirstVPN();
+	for (int vpn=firstVPN; vpn<firstVPN+map.getNumPages(); vpn++) {
+	    if (isResident(vpn))
+		evictPage(vpn, true);
+	    discardPage(vpn);
+	}
+
+	map.close();
+    }
+
+    /**
+     * Handle the shmget() system call.
+     */
+    private int handleShmget(int key, int size) {
+	boolean acquired = VMKernel.acquirePagingLock();
+	int id = SharedSegment.get(key, size, this);
+	VMKernel.releasePagingLock(acquired);
+
+	return id;
+    }
+
+    /**
+     * Handle the shmat() system call. Maps every page of a shared segment at
+     * a page-aligned address anywhere above the program's heap.
+     */
+    private int handleShmat(int id, int address) {
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	SharedSegment segment = SharedSegment.find(id);
+	int firstVPN = Processor.pageFromAddress(address);
+	if (segment == null || Processor.offsetFromAddress(address) != 0 ||
+	    firstVPN < numPages ||
+	    firstVPN + segment.getNumPages() > Processor.maxPages) {
+	    VMKernel.releasePagingLock(acquired);
+	    Lib.debug(dbgProcess, "\tshmat: bad arguments");
+	    return -1;
+	}
+
+	if (!isUnused(firstVPN, firstVPN + segment.getNumPages())) {
+	    VMKernel.releasePagingLock(acquired);
+	    Lib.debug(dbgProcess, "\tshmat: address already mapped");
+	    return -1;
+	}
+
+	UserKernel kernel = (UserKernel) Kernel.kernel;
+
+	segment.attach();
+	for (int i=0; i<segment.getNumPages(); i++) {
+	    int vpn = firstVPN + i;
+	    int ppn = segment.getPPN(i);
+
+	    kernel.referencePage(ppn);
+	    VMKernel.invertedPageTable.map(ppn, this, vpn);
+
+	    VMPage page = createPage(vpn);
+	    page.segment = segment;
+	    page.segmentStart = (i == 0);
+	    page.copyOnWrite = false;
+	    page.entry.ppn = ppn;
+	    page.entry.readOnly = false;
+	    page.entry.used = false;
+	    page.entry.dirty = false;
+	    page.entry.valid = true;
+	}
+
+	VMKernel.releasePagingLock(acquired);
+
+	return address;
+    }
+
+    /**
+     * Handle the shmdt() system call, detaching the shared segment attached
+     * at <i>address</i>.
+     */
+    private int handleShmdt(int address) {
+	int vpn = Processor.pageFromAddress(address);
+	VMPage page = getPage(vpn);
+	if (Processor.offsetFromAddress(address) != 0 || page == null ||
+	    !page.segmentStart)
+	    return -1;
+
+	boolean acquired = VMKernel.acquirePagingLock();
+	detachSegment(vpn);
+	VMKernel.releasePagingLock(acquired);
+
+	return 0;
+    }
+
+    /**
+     * Unmap the pages of the shared segment attached at a virtual page. The
+     * caller must hold the paging lock.
+     *
+     * @param	firstVPN	the first virtual page of the segment.
+     */
+    private void detachSegment(int firstVPN) {
+	SharedSegment segment = getPage(firstVPN).segment;
+
+	for (int i=0; i<segment.getNumPages(); i++)
+	    discardPage(firstVPN + i);
+
+	segment.detach();
+    }
+
+    /**
+     * Move the end of the heap. Pages the heap grows into are zero-filled
+     * when first touched, like stack pages, so growing it only checks that
+     * no mapped file or shared segment is in the way. Pages it shrinks out of
+     * are discarded wherever they are kept.
+     */
+    protected boolean resizeHeap(int newNumPages) {
+	boolean acquired = VMKernel.acquirePagingLock();
+
+	if (newNumPages > numPages && !isUnused(numPages, newNumPages)) {
+	    VMKernel.releasePagingLock(acquired);
+	    Lib.debug(dbgProcess, "\tsbrk: heap would overlap a mapping");
+	    return false;
+	}
+
+	for (int vpn=pageTable.next(newNumPages); vpn != -1 && vpn < numPages;
+	     vpn=pageTable.next(vpn+1))
+	    discardPage(vpn);
+
+	numPages = newNumPages;
+
+	VMKernel.releasePagingLock(acquired);
+	return true;
+    }
+
+    /**
+     * Test whether no page in a range is part of this process's address
+     * space yet. Only mapped files and shared segments live above the heap,
+     * so this is true when they leave the range free. The caller must hold
+     * the paging lock.
+     *
+     * @param	firstVPN	the first virtual page of the range.
+     * @param	endVPN	the virtual page just past the range.
+     * @return	<tt>true</tt> if no page in the range is in the page table.
+     */
+    private boolean isUnused(int firstVPN, int endVPN) {
+	int vpn = pageTable.next(firstVPN);
+	return vpn == -1 || vpn >= endVPN;
+    }
+
+    /**
+     * Remove a page from this process's address space, freeing its physical
+     * page and any copy kept of it, without writing it anywhere. The caller
+     * must hold the paging lock.
+     *
+     * @param	vpn	the virtual page.
+     */
+    private void discardPage(int vpn) {
+	VMPage page = getPage(vpn);
+	if (page == null)
+	    return;
+
+	if (page.entry.valid) {
+	    invalidateTLBEntry(vpn);
+	    page.entry.valid = false;
+	    VMKernel.invertedPageTable.unmap(page.entry.ppn, this, vpn);
+	    ((UserKernel) Kernel.kernel).free(page.entry.ppn);
+	}
+
+	if (page.swapSlot != -1)
+	    VMKernel.swap.free(page.swapSlot);
+	if (page.compressed != null)
+	    VMKernel.compressedPool.free(page.compressed);
+
+	removePage(vpn);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -60,14 +1262,75 @@ public class VMProcess extends UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	if (tlbContext != null)
+	    tlbContext.leaveUser();
+
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(Processor.pageFromAddress(
+				   processor.readRegister(Processor.regBadVAddr))))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionPageFault:
+	    if (!faultPage(Processor.pageFromAddress(
+			       processor.readRegister(Processor.regBadVAddr))))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
+
+	if (tlbContext != null)
+	    tlbContext.enterUser();
     }
-	
+
+    /** How many pages the next fault may prefetch. */
+    private int faultWindow;
+    /** The page that would continue a sequential run of faults. */
+    private int nextSequentialFault = -1;
+    /** Tags this address space's entries in the TLB. */
+    private TLBController.Context tlbContext = null;
+    private FaultFrequencyController.Allocation allocation =
+	new FaultFrequencyController.Allocation();
+    private int numResidentPages = 0;
+    private int maxResidentPages = 0;
+
+    /**
+     * The state of a virtual page of a demand-paged process: besides its
+     * translation, where the page is kept while it is not resident, and what
+     * it is part of.
+     */
+    protected static class VMPage extends VirtualPage {
+	/**
+	 * Allocate the state of a page that has never been loaded.
+	 *
+	 * @param	vpn	the virtual page number.
+	 */
+	VMPage(int vpn) {
+	    super(vpn);
+	}
+
+	/** The swap file slot holding the page, or -1. */
+	int swapSlot = -1;
+	/** The compressed copy of the page in the pool, or null. */
+	byte[] compressed = null;
+	/** Whether the page was evicted holding only zeros. */
+	boolean zero = false;
+	/** Whether the page was prefetched and has not been used since. */
+	boolean prefetched = false;
+	/** The file mapped at the page, or null. */
+	MemoryMap map = null;
+	/** The shared segment attached at the page, or null. */
+	SharedSegment segment = null;
+	/** Whether the page is the first of an attached segment. */
+	boolean segmentStart = false;
+    }
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
+    private static final char dbgTLB = 'T';
 }
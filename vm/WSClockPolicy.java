@@ -0,0 +1,82 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps the physical
+ * pages and clears used bits, but it also records when it last saw each page
+ * used. A page not used for longer than the working-set window has left its
+ * process's working set, and a clean such page is evicted at once.
+ *
+ * <p>
+ * There is no page-out daemon to clean dirty pages ahead of the hand, so if
+ * the hand finds no clean page outside the working set, it evicts the first
+ * dirty one it passed, or failing that, the first page it passed that was not
+ * used. The window is measured in ticks of the simulated clock, and is set by
+ * the <tt>WSClockPolicy.window</tt> key in <tt>nachos.conf</tt>.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(InvertedPageTable invertedPageTable) {
+	this.invertedPageTable = invertedPageTable;
+	lastUsed = new long[invertedPageTable.getNumPhysPages()];
+
+	window = Config.getInteger("WSClockPolicy.window", 5000);
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public void timerInterrupt() {
+    }
+
+    public int selectVictim() {
+	int numPhysPages = lastUsed.length;
+	long time = Machine.timer().getTime();
+
+	int oldDirty = -1;
+	int unused = -1;
+
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!invertedPageTable.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = invertedPageTable.getEntry(ppn);
+	    if (entry.used) {
+		entry.used = false;
+		lastUsed[ppn] = time;
+		continue;
+	    }
+
+	    if (time - lastUsed[ppn] > window) {
+		if (!entry.dirty)
+		    return ppn;
+		if (oldDirty == -1)
+		    oldDirty = ppn;
+	    }
+
+	    if (unused == -1)
+		unused = ppn;
+	}
+
+	return (oldDirty != -1) ? oldDirty : unused;
+    }
+
+    private InvertedPageTable invertedPageTable;
+    private long[] lastUsed;
+    private long window;
+    private int hand = 0;
+}